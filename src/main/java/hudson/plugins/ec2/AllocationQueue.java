@@ -0,0 +1,165 @@
+package hudson.plugins.ec2;
+
+import hudson.util.TimeUnit2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Orders the node allocations of the builds contending for the same label. One allocation runs at a time
+ * per label, and the next one goes to the waiting project with the least recent usage of the label for its
+ * weight, so a large job can't hold the label away from the others. While other projects wait, an
+ * allocation only takes its weighted share of the idle nodes and launches the rest. The turn ends once the
+ * idle nodes are taken, so the launches of contending builds run at the same time.
+ */
+public class AllocationQueue {
+	private static final long USAGE_HALF_LIFE = TimeUnit2.MINUTES.toMillis(30);
+	private static final double FORGOTTEN_USAGE = 0.01;
+	public static final int MAX_PRIORITY = 100;
+
+	private static final AllocationQueue instance = new AllocationQueue();
+
+	private final Map<String, LabelQueue> queues = new HashMap<String, LabelQueue>();
+	private long sequence;
+
+	public static AllocationQueue get() {
+		return instance;
+	}
+
+	/**
+	 * An allocation allowed to run. It must be released once the nodes are allocated.
+	 */
+	public static class Grant {
+		private final Request request;
+		private final double idleNodeShare;
+
+		Grant(Request request, double idleNodeShare) {
+			this.request = request;
+			this.idleNodeShare = idleNodeShare;
+		}
+
+		/**
+		 * Share of the idle nodes of the label the allocation may take, 1 when nobody else waits
+		 */
+		public double getIdleNodeShare() {
+			return idleNodeShare;
+		}
+	}
+
+	static class Request {
+		final String project;
+		final int weight;
+		final long sequence;
+
+		Request(String project, int weight, long sequence) {
+			this.project = project;
+			this.weight = weight;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Waiting requests and decayed usage per project of one label
+	 */
+	static class LabelQueue {
+		final List<Request> waiting = new ArrayList<Request>();
+		private final Map<String, Double> usage = new HashMap<String, Double>();
+		private final Map<String, Long> usageUpdatedAt = new HashMap<String, Long>();
+		boolean busy;
+
+		/**
+		 * The waiting request of the project with the least usage for its weight, the oldest on ties
+		 */
+		Request next(long now) {
+			Request next = null;
+			double nextUsage = 0;
+			for (Request request : waiting) {
+				double requestUsage = usageOf(request.project, now) / request.weight;
+				if (next == null || requestUsage < nextUsage || (requestUsage == nextUsage && request.sequence < next.sequence)) {
+					next = request;
+					nextUsage = requestUsage;
+				}
+			}
+			return next;
+		}
+
+		/**
+		 * Weight of the request over the weights of all the projects waiting, each project counted once
+		 */
+		double shareOf(Request granted) {
+			int totalWeight = granted.weight;
+			Set<String> projects = new HashSet<String>();
+			projects.add(granted.project);
+			for (Request request : waiting) {
+				if (projects.add(request.project))
+					totalWeight += request.weight;
+			}
+			return (double) granted.weight / totalWeight;
+		}
+
+		void charge(String project, int nodes, long now) {
+			usage.put(project, usageOf(project, now) + nodes);
+			usageUpdatedAt.put(project, now);
+			Iterator<Map.Entry<String, Double>> entries = usage.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String, Double> entry = entries.next();
+				if (usageOf(entry.getKey(), now) < FORGOTTEN_USAGE) {
+					entries.remove();
+					usageUpdatedAt.remove(entry.getKey());
+				}
+			}
+		}
+
+		double usageOf(String project, long now) {
+			Double projectUsage = usage.get(project);
+			if (projectUsage == null)
+				return 0;
+			long elapsed = Math.max(0, now - usageUpdatedAt.get(project));
+			return projectUsage * Math.pow(0.5, (double) elapsed / USAGE_HALF_LIFE);
+		}
+	}
+
+	/**
+	 * Waits for the turn of the project on the label. The priority weighs the share of the project, from 1 to MAX_PRIORITY.
+	 */
+	public synchronized Grant acquire(EC2Logger logger, String ec2Label, String project, int priority) throws InterruptedException {
+		LabelQueue queue = queueOf(ec2Label);
+		Request request = new Request(project, Math.max(1, Math.min(MAX_PRIORITY, priority)), sequence++);
+		queue.waiting.add(request);
+		try {
+			if (queue.busy || queue.next(System.currentTimeMillis()) != request)
+				logger.println("Waiting for the allocation of " + ec2Label + " behind " + (queue.waiting.size() - 1 + (queue.busy ? 1 : 0)) + " builds");
+			while (queue.busy || queue.next(System.currentTimeMillis()) != request)
+				wait();
+		} finally {
+			queue.waiting.remove(request);
+			notifyAll();
+		}
+		queue.busy = true;
+		return new Grant(request, queue.shareOf(request));
+	}
+
+	/**
+	 * Ends the allocation of the grant, charging the project for the nodes it got
+	 */
+	public synchronized void release(String ec2Label, Grant grant, int allocatedNodes) {
+		LabelQueue queue = queueOf(ec2Label);
+		queue.charge(grant.request.project, allocatedNodes, System.currentTimeMillis());
+		queue.busy = false;
+		notifyAll();
+	}
+
+	private LabelQueue queueOf(String ec2Label) {
+		LabelQueue queue = queues.get(ec2Label);
+		if (queue == null) {
+			queue = new LabelQueue();
+			queues.put(ec2Label, queue);
+		}
+		return queue;
+	}
+}
@@ -0,0 +1,239 @@
+package hudson.plugins.ec2;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+
+/**
+ * Merges the describe calls that only select instances or spot requests by id and arrive within
+ * a short window into a single call, and shares the in-flight calls with the callers whose ids
+ * they already cover. Each caller gets back only what it asked for.
+ * Ids are always queried with a filter, so unknown ids are left out of the result instead of
+ * failing the whole batch.
+ */
+public class AmazonEC2Coalescing implements InvocationHandler {
+	private static final long DEFAULT_WINDOW_MILLIS = 50;
+	private static final int IDS_PER_REQUEST = 100;
+
+	private final AmazonEC2 delegate;
+	private final BatchWindow window;
+	private final Coalescer<DescribeInstancesResult> instances = new InstancesCoalescer();
+	private final Coalescer<DescribeSpotInstanceRequestsResult> spotRequests = new SpotRequestsCoalescer();
+
+	public static AmazonEC2 wrap(AmazonEC2 ec2) {
+		return wrap(ec2, DEFAULT_WINDOW_MILLIS);
+	}
+
+	public static AmazonEC2 wrap(AmazonEC2 ec2, long windowMillis) {
+		return wrap(ec2, new BatchWindow.Timed(windowMillis));
+	}
+
+	static AmazonEC2 wrap(AmazonEC2 ec2, BatchWindow window) {
+		AmazonEC2Coalescing handler = new AmazonEC2Coalescing(ec2, window);
+		return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(), new Class<?>[]{AmazonEC2.class}, handler);
+	}
+
+	private AmazonEC2Coalescing(AmazonEC2 delegate, BatchWindow window) {
+		this.delegate = delegate;
+		this.window = window;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (args != null && args.length == 1) {
+			if (args[0] instanceof DescribeInstancesRequest) {
+				Set<String> ids = getSelectedInstanceIds((DescribeInstancesRequest) args[0]);
+				if (ids != null)
+					return instances.fetch(ids);
+			}
+			if (args[0] instanceof DescribeSpotInstanceRequestsRequest) {
+				Set<String> ids = getSelectedSpotRequestIds((DescribeSpotInstanceRequestsRequest) args[0]);
+				if (ids != null)
+					return spotRequests.fetch(ids);
+			}
+		}
+		try {
+			return method.invoke(delegate, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	/**
+	 * The instance ids of a request that selects by id only, null for any other request
+	 */
+	private static Set<String> getSelectedInstanceIds(DescribeInstancesRequest request) {
+		if (request.getMaxResults() != null || request.getNextToken() != null)
+			return null;
+		return getSelectedIds(request.getInstanceIds(), request.getFilters(), "instance-id");
+	}
+
+	private static Set<String> getSelectedSpotRequestIds(DescribeSpotInstanceRequestsRequest request) {
+		return getSelectedIds(request.getSpotInstanceRequestIds(), request.getFilters(), "spot-instance-request-id");
+	}
+
+	private static Set<String> getSelectedIds(List<String> ids, List<Filter> filters, String idFilterName) {
+		boolean hasIds = ids != null && !ids.isEmpty();
+		boolean hasFilters = filters != null && !filters.isEmpty();
+		if (hasIds && !hasFilters)
+			return new HashSet<String>(ids);
+		if (!hasIds && hasFilters && filters.size() == 1 && idFilterName.equals(filters.get(0).getName()))
+			return new HashSet<String>(filters.get(0).getValues());
+		return null;
+	}
+
+	private static class Batch<R> {
+		final Set<String> ids = new HashSet<String>();
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile R result;
+		volatile RuntimeException failure;
+	}
+
+	/**
+	 * The first caller of a window waits for the window to close and makes the call for everyone who joined it
+	 */
+	private abstract class Coalescer<R> {
+		private Batch<R> openBatch;
+		private final List<Batch<R>> inFlightBatches = new ArrayList<Batch<R>>();
+
+		R fetch(Set<String> ids) {
+			Batch<R> batch;
+			boolean leader = false;
+			synchronized (this) {
+				batch = findInFlightBatchCovering(ids);
+				if (batch == null) {
+					if (openBatch == null) {
+						openBatch = new Batch<R>();
+						leader = true;
+					}
+					batch = openBatch;
+					batch.ids.addAll(ids);
+					window.joined();
+				}
+			}
+			if (leader)
+				runBatch(batch);
+			try {
+				batch.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AmazonClientException("Interrupted while waiting for a coalesced describe call", e);
+			}
+			if (batch.failure != null)
+				throw batch.failure;
+			return select(batch.result, ids);
+		}
+
+		private Batch<R> findInFlightBatchCovering(Set<String> ids) {
+			for (Batch<R> batch : inFlightBatches) {
+				if (batch.ids.containsAll(ids))
+					return batch;
+			}
+			return null;
+		}
+
+		private void runBatch(Batch<R> batch) {
+			try {
+				window.awaitClose();
+				synchronized (this) {
+					openBatch = null;
+					inFlightBatches.add(batch);
+				}
+				batch.result = describe(new ArrayList<String>(batch.ids));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				batch.failure = new AmazonClientException("Interrupted while the describe call was coalesced", e);
+			} catch (RuntimeException e) {
+				batch.failure = e;
+			} finally {
+				synchronized (this) {
+					if (openBatch == batch)
+						openBatch = null;
+					inFlightBatches.remove(batch);
+				}
+				if (batch.result == null && batch.failure == null)
+					batch.failure = new IllegalStateException("Coalesced describe call did not complete");
+				batch.done.countDown();
+			}
+		}
+
+		abstract R describe(List<String> ids);
+
+		abstract R select(R result, Set<String> ids);
+	}
+
+	private class InstancesCoalescer extends Coalescer<DescribeInstancesResult> {
+		@Override
+		DescribeInstancesResult describe(List<String> ids) {
+			List<Reservation> reservations = new ArrayList<Reservation>();
+			for (int start = 0; start < ids.size(); start += IDS_PER_REQUEST) {
+				List<String> chunk = ids.subList(start, Math.min(start + IDS_PER_REQUEST, ids.size()));
+				DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(new Filter("instance-id").withValues(chunk));
+				reservations.addAll(delegate.describeInstances(request).getReservations());
+			}
+			return new DescribeInstancesResult().withReservations(reservations);
+		}
+
+		@Override
+		DescribeInstancesResult select(DescribeInstancesResult result, Set<String> ids) {
+			List<Reservation> reservations = new ArrayList<Reservation>();
+			for (Reservation reservation : result.getReservations()) {
+				List<Instance> selected = new ArrayList<Instance>();
+				for (Instance instance : reservation.getInstances()) {
+					if (ids.contains(instance.getInstanceId()))
+						selected.add(instance);
+				}
+				if (selected.isEmpty())
+					continue;
+				reservations.add(new Reservation()
+						.withReservationId(reservation.getReservationId())
+						.withOwnerId(reservation.getOwnerId())
+						.withRequesterId(reservation.getRequesterId())
+						.withGroups(reservation.getGroups())
+						.withInstances(selected));
+			}
+			return new DescribeInstancesResult().withReservations(reservations);
+		}
+	}
+
+	private class SpotRequestsCoalescer extends Coalescer<DescribeSpotInstanceRequestsResult> {
+		@Override
+		DescribeSpotInstanceRequestsResult describe(List<String> ids) {
+			List<SpotInstanceRequest> requests = new ArrayList<SpotInstanceRequest>();
+			for (int start = 0; start < ids.size(); start += IDS_PER_REQUEST) {
+				List<String> chunk = ids.subList(start, Math.min(start + IDS_PER_REQUEST, ids.size()));
+				DescribeSpotInstanceRequestsRequest request = new DescribeSpotInstanceRequestsRequest()
+						.withFilters(new Filter("spot-instance-request-id").withValues(chunk));
+				requests.addAll(delegate.describeSpotInstanceRequests(request).getSpotInstanceRequests());
+			}
+			return new DescribeSpotInstanceRequestsResult().withSpotInstanceRequests(requests);
+		}
+
+		@Override
+		DescribeSpotInstanceRequestsResult select(DescribeSpotInstanceRequestsResult result, Set<String> ids) {
+			List<SpotInstanceRequest> selected = new ArrayList<SpotInstanceRequest>();
+			for (SpotInstanceRequest request : result.getSpotInstanceRequests()) {
+				if (ids.contains(request.getSpotInstanceRequestId()))
+					selected.add(request);
+			}
+			return new DescribeSpotInstanceRequestsResult().withSpotInstanceRequests(selected);
+		}
+	}
+}
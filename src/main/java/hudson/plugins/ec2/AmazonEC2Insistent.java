@@ -5,6 +5,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 
+import org.apache.commons.lang.StringUtils;
+
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 
@@ -33,13 +35,17 @@ public class AmazonEC2Insistent implements InvocationHandler {
 	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
 		while (true) {
 			try {
-				return method.invoke(delegate, args);
+				Object result = method.invoke(delegate, args);
+				Ec2AxisMetrics.awsCall(method.getName(), "ok");
+				return result;
 			
 			} catch (InvocationTargetException invocationException) {
 				Throwable ex = invocationException.getTargetException();
 				if (ex instanceof AmazonServiceException) {
+					Ec2AxisMetrics.awsCall(method.getName(), StringUtils.defaultString(((AmazonServiceException) ex).getErrorCode(), "unknown"));
 					handleAwsException((AmazonServiceException) ex, method.getName());
 				} else {				
+					Ec2AxisMetrics.awsCall(method.getName(), "client_error");
 					throw ex;
 				}
 			}
@@ -50,6 +56,7 @@ public class AmazonEC2Insistent implements InvocationHandler {
 		if (ex.getStatusCode() != 503)
 			throw ex;
 		
+		Ec2AxisMetrics.awsRetry(methodName, StringUtils.defaultString(ex.getErrorCode(), "unknown"));
 		logger.println("Error 503 (" + ex.getMessage() + ") calling " + methodName + ". Retry...");
 		ThreadUtils.sleepWithoutInterruptions(waitTimeToRetryInSeconds * 1000);
     }
@@ -0,0 +1,37 @@
+package hudson.plugins.ec2;
+
+/**
+ * Decides how long a batch accepts callers after the first one opened it
+ */
+interface BatchWindow {
+	/**
+	 * Called, while the batch is open, for each caller that joins it, the first one included
+	 */
+	void joined();
+
+	/**
+	 * Called by the caller that opened the batch, which runs it once this returns
+	 */
+	void awaitClose() throws InterruptedException;
+
+	/**
+	 * Closes a fixed time after the batch opened
+	 */
+	class Timed implements BatchWindow {
+		private final long windowMillis;
+
+		Timed(long windowMillis) {
+			this.windowMillis = windowMillis;
+		}
+
+		@Override
+		public void joined() {
+		}
+
+		@Override
+		public void awaitClose() throws InterruptedException {
+			if (windowMillis > 0)
+				Thread.sleep(windowMillis);
+		}
+	}
+}
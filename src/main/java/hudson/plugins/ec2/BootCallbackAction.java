@@ -0,0 +1,89 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.UnprotectedRootAction;
+import hudson.plugins.ec2.utils.DescribePages;
+import hudson.security.csrf.CrumbExclusion;
+import hudson.slaves.Cloud;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import com.amazonaws.services.ec2.model.Instance;
+
+/**
+ * Endpoint the axis instances call at the end of their user data script, so their connection
+ * starts as soon as they are up instead of on the next readiness poll. Instances have no
+ * Jenkins credentials, so requests are authenticated with a token derived from the cloud name.
+ * Every instance of the cloud can read that token from its user data, so the request must also
+ * come from an address of the instance it names.
+ */
+@Extension
+public class BootCallbackAction implements UnprotectedRootAction {
+	static final String URL_NAME = "ec2-axis-boot";
+
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return null;
+	}
+
+	@Override
+	public String getUrlName() {
+		return URL_NAME;
+	}
+
+	@RequirePOST
+	public HttpResponse doBootComplete(StaplerRequest request, @QueryParameter String cloud, @QueryParameter String instanceId, @QueryParameter String token) {
+		Cloud namedCloud = Jenkins.getInstance().getCloud(cloud);
+		if (!(namedCloud instanceof EC2AxisCloud) || Util.fixEmpty(instanceId) == null)
+			return HttpResponses.notFound();
+		EC2AxisCloud axisCloud = (EC2AxisCloud) namedCloud;
+		if (!axisCloud.isValidBootCallbackToken(token) || !isAddressOf(axisCloud, instanceId, request.getRemoteAddr()))
+			return HttpResponses.forbidden();
+		axisCloud.getReadinessPoller().markBooted(instanceId);
+		return HttpResponses.ok();
+	}
+
+	private boolean isAddressOf(EC2AxisCloud cloud, String instanceId, String remoteAddress) {
+		for (Instance instance : DescribePages.instancesById(cloud.connectShared(), Arrays.asList(instanceId))) {
+			if (remoteAddress.equals(instance.getPrivateIpAddress()) || remoteAddress.equals(instance.getPublicIpAddress()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Instances can't get a crumb before calling back
+	 */
+	@Extension
+	public static class BootCallbackCrumbExclusion extends CrumbExclusion {
+		@Override
+		public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain) throws IOException, ServletException {
+			String pathInfo = req.getPathInfo();
+			if (pathInfo != null && pathInfo.startsWith("/" + URL_NAME + "/")) {
+				chain.doFilter(req, resp);
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Shell sections the plugin adds to the user data of the instances it launches
+ */
+public class BootScript {
+	private static final String USER_SCRIPT = "/var/tmp/ec2-axis-user-data";
+	private static final String USER_SCRIPT_END = "EC2_AXIS_USER_DATA";
+
+	private final String userData;
+	private final List<String> sections = new ArrayList<String>();
+
+	public BootScript(String userData) {
+		this.userData = StringUtils.defaultString(userData);
+	}
+
+	public BootScript append(String section) {
+		sections.add(section);
+		return this;
+	}
+
+	public boolean hasSections() {
+		return !sections.isEmpty();
+	}
+
+	public boolean canAppend() {
+		return StringUtils.isBlank(userData) || userData.startsWith("#!");
+	}
+
+	/**
+	 * The sections can only be added when the user data is empty or is a script itself. The user script
+	 * runs first as its own process, so exiting early doesn't skip the sections. Each section runs in a
+	 * subshell that stops at its first failing command, without stopping the ones after it.
+	 */
+	public String toUserData() {
+		if (!hasSections() || !canAppend())
+			return userData;
+		StringBuilder script = new StringBuilder("#!/bin/sh\n");
+		if (StringUtils.isNotBlank(userData)) {
+			script.append("cat > " + USER_SCRIPT + " <<'" + USER_SCRIPT_END + "'\n")
+					.append(userData).append("\n")
+					.append(USER_SCRIPT_END + "\n")
+					.append("chmod +x " + USER_SCRIPT + "\n")
+					.append(USER_SCRIPT + "\n");
+		}
+		for (String section : sections)
+			script.append("(\nset -e\n").append(section).append("\n)\n");
+		return script.toString();
+	}
+
+	/**
+	 * Mounts the volume of the device on the directory, creating a file system on it the first time.
+	 * Once mounted, the mount goes to fstab so it survives a stop and start of the instance.
+	 */
+	public static String mountVolume(String device, String directory, String owner) {
+		String section = "for ATTEMPT in $(seq 300); do [ -b " + device + " ] && break; sleep 1; done\n" +
+				"blkid " + device + " || mkfs -t ext4 " + device + "\n" +
+				"mkdir -p " + directory + "\n" +
+				"mount " + device + " " + directory + "\n" +
+				"grep -q \"^" + device + " \" /etc/fstab || echo \"" + device + " " + directory + " ext4 defaults,nofail 0 2\" >> /etc/fstab";
+		if (StringUtils.isNotBlank(owner))
+			section += "\nchown " + owner + " " + directory;
+		return section;
+	}
+
+	/**
+	 * Assembles the mapped instance store volumes in a RAID0 array, or uses the only one, and mounts it on
+	 * the directory. Instance store is wiped when the instance stops, so nothing goes to fstab. Fails
+	 * when the instance has no instance store volume.
+	 */
+	public static String mountInstanceStoreRaid(String directory, String owner) {
+		String metadata = "http://169.254.169.254/latest/meta-data/block-device-mapping/";
+		String section = "DEVICES=\"\"\n" +
+				"for EPHEMERAL in $(wget -q -O - " + metadata + " | grep ephemeral); do\n" +
+				"  DEVICE=/dev/$(wget -q -O - " + metadata + "$EPHEMERAL | sed 's/^sd/xvd/')\n" +
+				"  [ -b $DEVICE ] || continue\n" +
+				"  umount $DEVICE 2>/dev/null || true\n" +
+				"  DEVICES=\"$DEVICES $DEVICE\"\n" +
+				"done\n" +
+				"COUNT=$(echo $DEVICES | wc -w)\n" +
+				"if [ $COUNT -eq 0 ]; then\n" +
+				"  echo \"No instance store volume to mount on " + directory + "\" >&2\n" +
+				"  exit 1\n" +
+				"fi\n" +
+				"ARRAY=$DEVICES\n" +
+				"if [ $COUNT -gt 1 ]; then\n" +
+				"  mdadm --create /dev/md0 --run --level=0 --raid-devices=$COUNT $DEVICES\n" +
+				"  ARRAY=/dev/md0\n" +
+				"fi\n" +
+				"mkfs -t ext4 $ARRAY\n" +
+				"mkdir -p " + directory + "\n" +
+				"mount $ARRAY " + directory;
+		if (StringUtils.isNotBlank(owner))
+			section += "\nchown " + owner + " " + directory;
+		return section;
+	}
+
+	/**
+	 * Tells Jenkins the boot script is done. With a mount point, the end of the boot is only announced
+	 * once the directory is mounted, so connections keep waiting when mounting it failed.
+	 */
+	public static String bootCompleteCallback(String jenkinsUrl, String cloudName, String token, String mountPoint) {
+		String section = "";
+		if (StringUtils.isNotBlank(mountPoint))
+			section = "mountpoint -q " + mountPoint + " || { echo \"" + mountPoint + " is not mounted. The end of the boot is not announced\" >&2; exit 1; }\n";
+		return section + "INSTANCE_ID=$(wget -q -O - http://169.254.169.254/latest/meta-data/instance-id)\n" +
+				"wget -q -O /dev/null --post-data \"cloud=" + cloudName + "&instanceId=$INSTANCE_ID&token=" + token + "\" " +
+				"\"" + jenkinsUrl + BootCallbackAction.URL_NAME + "/bootComplete\" || true";
+	}
+}
@@ -0,0 +1,41 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recent times instances of each template took from launch until their slave was online
+ */
+public class BootTimeStatistics {
+	private static final int MAX_SAMPLES = 50;
+	private static final int MIN_SAMPLES = 5;
+	private static final Map<String, LinkedList<Long>> bootTimesByTemplate = new HashMap<String, LinkedList<Long>>();
+
+	public static synchronized void record(String templateDescription, long bootTimeMillis) {
+		LinkedList<Long> bootTimes = bootTimesByTemplate.get(templateDescription);
+		if (bootTimes == null) {
+			bootTimes = new LinkedList<Long>();
+			bootTimesByTemplate.put(templateDescription, bootTimes);
+		}
+		bootTimes.add(bootTimeMillis);
+		if (bootTimes.size() > MAX_SAMPLES)
+			bootTimes.removeFirst();
+	}
+
+	/**
+	 * The given percentile of the recent boot times, or -1 if there are not enough samples
+	 */
+	public static synchronized long percentile(String templateDescription, int percentile) {
+		LinkedList<Long> bootTimes = bootTimesByTemplate.get(templateDescription);
+		if (bootTimes == null || bootTimes.size() < MIN_SAMPLES)
+			return -1;
+		List<Long> sorted = new ArrayList<Long>(bootTimes);
+		Collections.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
+}
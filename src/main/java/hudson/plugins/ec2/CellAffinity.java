@@ -0,0 +1,92 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which node ran each cell of the last build of a project, so the next build can
+ * give the cells back to the same nodes and find their workspaces and caches warm.
+ */
+public class CellAffinity {
+	private static final int MAX_KEYS_KEPT = 500;
+
+	private static final Map<String, List<String>> nodesByKey = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+			return size() > MAX_KEYS_KEPT;
+		}
+	};
+
+	public static String keyOf(String projectName, String ec2Label) {
+		return projectName + "/" + ec2Label;
+	}
+
+	/**
+	 * Records the node of each cell, in cell order
+	 */
+	public static synchronized void remember(String key, List<String> cellLabels) {
+		List<String> nodeNames = new ArrayList<String>();
+		for (String cellLabel : cellLabels)
+			nodeNames.add(CellLabels.nodeNameOf(cellLabel));
+		nodesByKey.put(key, nodeNames);
+	}
+
+	/**
+	 * Nodes of the cells of the last build, in cell order. Empty if the key is null or unknown.
+	 */
+	public static synchronized List<String> previousNodes(String key) {
+		List<String> nodeNames = key == null ? null : nodesByKey.get(key);
+		if (nodeNames == null)
+			return new ArrayList<String>();
+		return new ArrayList<String>(nodeNames);
+	}
+
+	/**
+	 * Candidates that ran cells last time first, in cell order, then the others
+	 */
+	public static List<Node> preferPrevious(Collection<Node> candidates, List<String> previousNodes) {
+		List<Node> preferred = new ArrayList<Node>();
+		List<Node> others = new ArrayList<Node>();
+		for (String nodeName : previousNodes) {
+			for (Node candidate : candidates) {
+				if (candidate.getNodeName().equals(nodeName) && !preferred.contains(candidate))
+					preferred.add(candidate);
+			}
+		}
+		for (Node candidate : candidates) {
+			if (!preferred.contains(candidate))
+				others.add(candidate);
+		}
+		preferred.addAll(others);
+		return preferred;
+	}
+
+	/**
+	 * Orders the nodes so each node that ran a cell last time gets that cell back. The other nodes
+	 * take the remaining cells in their order.
+	 */
+	public static <T extends Node> List<T> arrange(List<T> nodes, List<String> previousNodes) {
+		List<T> cells = new ArrayList<T>();
+		for (int i = 0; i < nodes.size(); i++)
+			cells.add(null);
+		List<T> unplaced = new ArrayList<T>();
+		for (T node : nodes) {
+			int previousCell = previousNodes.indexOf(node.getNodeName());
+			if (previousCell >= 0 && previousCell < cells.size() && cells.get(previousCell) == null)
+				cells.set(previousCell, node);
+			else
+				unplaced.add(node);
+		}
+		int next = 0;
+		for (int i = 0; i < cells.size(); i++) {
+			if (cells.get(i) == null)
+				cells.set(i, unplaced.get(next++));
+		}
+		return cells;
+	}
+}
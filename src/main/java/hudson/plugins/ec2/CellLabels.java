@@ -0,0 +1,219 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.ec2axis.Ec2SafeNodeTaskWorker;
+
+/**
+ * Labels returned by the axis for each matrix cell. A cell label is either the name of the node
+ * that runs the cell or, when cells are packed, the node name followed by the cell number.
+ * Allocated cells are pending until their run completes. The cell labels added to a node are
+ * removed from it then, and nodes with pending cells are neither packed again nor retired.
+ */
+public class CellLabels {
+	private static final Map<String, Map<String, PendingCell>> pendingByRequester = new HashMap<String, Map<String, PendingCell>>();
+
+	static class PendingCell {
+		final int execId;
+		String nodeName;
+
+		PendingCell(int execId, String nodeName) {
+			this.execId = execId;
+			this.nodeName = nodeName;
+		}
+	}
+
+	public static String nodeNameOf(String cellLabel) {
+		return StringUtils.substringBefore(cellLabel, EC2AxisCloud.SLAVE_NUM_SEPARATOR);
+	}
+
+	public static EC2AbstractSlave nodeOf(String cellLabel) {
+		Node node = Jenkins.getInstance().getNode(nodeNameOf(cellLabel));
+		if (node instanceof EC2AbstractSlave)
+			return (EC2AbstractSlave) node;
+		return null;
+	}
+
+	public static List<String> cellLabelsOfNode(String nodeName, List<String> cellLabels) {
+		List<String> nodeCellLabels = new ArrayList<String>();
+		for (String cellLabel : cellLabels) {
+			if (nodeNameOf(cellLabel).equals(nodeName))
+				nodeCellLabels.add(cellLabel);
+		}
+		return nodeCellLabels;
+	}
+
+	/**
+	 * Records the cells allocated to the requester as pending. Each cell gets its matrix execution id from its position.
+	 */
+	public static synchronized void allocated(String requester, List<String> cellLabels) {
+		Map<String, PendingCell> pending = pendingByRequester.get(requester);
+		if (pending == null) {
+			pending = new LinkedHashMap<String, PendingCell>();
+			pendingByRequester.put(requester, pending);
+		}
+		int execId = 1;
+		for (String cellLabel : cellLabels)
+			pending.put(cellLabel, new PendingCell(execId++, nodeNameOf(cellLabel)));
+	}
+
+	/**
+	 * Whether cells allocated to the node, or moved to it, haven't completed yet
+	 */
+	public static synchronized boolean hasPendingCells(String nodeName) {
+		for (Map<String, PendingCell> pending : pendingByRequester.values()) {
+			for (PendingCell cell : pending.values()) {
+				if (cell.nodeName.equals(nodeName))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Matrix execution id of a pending cell, null when the cell is unknown
+	 */
+	public static synchronized Integer execIdOf(String requester, String cellLabel) {
+		Map<String, PendingCell> pending = pendingByRequester.get(requester);
+		if (pending == null || !pending.containsKey(cellLabel))
+			return null;
+		return pending.get(cellLabel).execId;
+	}
+
+	/**
+	 * Adds the labels of cells to the node
+	 */
+	public static void addToNode(EC2AbstractSlave slave, List<String> cellLabels) throws IOException {
+		Set<String> labels = new LinkedHashSet<String>(Arrays.asList(StringUtils.split(StringUtils.defaultString(slave.getLabelString()))));
+		labels.addAll(cellLabels);
+		slave.setLabelString(StringUtils.join(labels, " "));
+	}
+
+	/**
+	 * Makes the cells queued for the given labels run on another node. They keep their matrix execution id.
+	 */
+	public static void moveCellsTo(final EC2AbstractSlave slave, final List<String> cellLabels) {
+		synchronized (CellLabels.class) {
+			for (Map<String, PendingCell> pending : pendingByRequester.values()) {
+				for (String cellLabel : cellLabels) {
+					if (pending.containsKey(cellLabel))
+						pending.get(cellLabel).nodeName = slave.getNodeName();
+				}
+			}
+		}
+		Ec2SafeNodeTaskWorker.invokeAndWait(new Runnable() {  @Override public void run() {
+			try {
+				addToNode(slave, cellLabels);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}});
+		Jenkins.getInstance().getQueue().scheduleMaintenance();
+	}
+
+	/**
+	 * Forgets the pending cells of the requester among the given labels, and removes their labels from
+	 * the nodes they were added to, unless another requester still has a cell with the same label there
+	 */
+	static void completed(String requester, List<String> cellLabels) {
+		final Map<String, List<String>> labelsToRemoveByNode = new HashMap<String, List<String>>();
+		synchronized (CellLabels.class) {
+			Map<String, PendingCell> pending = pendingByRequester.get(requester);
+			if (pending == null)
+				return;
+			for (String cellLabel : cellLabels) {
+				PendingCell cell = pending.remove(cellLabel);
+				if (cell == null || isPendingElsewhere(cellLabel, cell.nodeName))
+					continue;
+				List<String> labelsToRemove = labelsToRemoveByNode.get(cell.nodeName);
+				if (labelsToRemove == null) {
+					labelsToRemove = new ArrayList<String>();
+					labelsToRemoveByNode.put(cell.nodeName, labelsToRemove);
+				}
+				labelsToRemove.add(cellLabel);
+			}
+			if (pending.isEmpty())
+				pendingByRequester.remove(requester);
+		}
+		if (labelsToRemoveByNode.isEmpty())
+			return;
+		Ec2SafeNodeTaskWorker.invoke(new Runnable() {  @Override public void run() {
+			for (Map.Entry<String, List<String>> nodeLabels : labelsToRemoveByNode.entrySet())
+				removeFromNode(nodeLabels.getKey(), nodeLabels.getValue());
+		}});
+	}
+
+	static void buildCompleted(String requester) {
+		List<String> cellLabels;
+		synchronized (CellLabels.class) {
+			Map<String, PendingCell> pending = pendingByRequester.get(requester);
+			if (pending == null)
+				return;
+			cellLabels = new ArrayList<String>(pending.keySet());
+		}
+		completed(requester, cellLabels);
+	}
+
+	private static boolean isPendingElsewhere(String cellLabel, String nodeName) {
+		for (Map<String, PendingCell> pending : pendingByRequester.values()) {
+			PendingCell cell = pending.get(cellLabel);
+			if (cell != null && cell.nodeName.equals(nodeName))
+				return true;
+		}
+		return false;
+	}
+
+	private static void removeFromNode(String nodeName, List<String> cellLabels) {
+		Node node = Jenkins.getInstance().getNode(nodeName);
+		if (!(node instanceof EC2AbstractSlave))
+			return;
+		List<String> labels = new ArrayList<String>(Arrays.asList(StringUtils.split(StringUtils.defaultString(node.getLabelString()))));
+		if (!labels.removeAll(cellLabels))
+			return;
+		try {
+			((EC2AbstractSlave) node).setLabelString(StringUtils.join(labels, " "));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Extension
+	public static class CellCompletion extends RunListener<MatrixRun> {
+		@Override
+		public void onCompleted(MatrixRun run, TaskListener listener) {
+			MatrixBuild build = run.getParentBuild();
+			if (build == null)
+				return;
+			completed(build.getExternalizableId(), new ArrayList<String>(run.getParent().getCombination().values()));
+		}
+	}
+
+	/**
+	 * Cells of a build that ends before running all of them, because it was aborted, are not pending anymore
+	 */
+	@Extension
+	public static class BuildCompletion extends RunListener<MatrixBuild> {
+		@Override
+		public void onCompleted(MatrixBuild build, TaskListener listener) {
+			buildCompleted(build.getExternalizableId());
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package hudson.plugins.ec2;
+
+import hudson.XmlFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps, for each ec2label, how many slaves were requested by axis builds in each hour of the week.
+ * The smoothed values are used as a forecast to launch instances before the expected demand arrives.
+ * The demand of each build is only kept in memory, and saved by the periodic pre-warm work.
+ */
+public class DemandHistory {
+	private static final Logger LOGGER = Logger.getLogger(DemandHistory.class.getName());
+	private static final int HOURS_PER_WEEK = 7 * 24;
+	private static final double SMOOTHING_FACTOR = 0.3;
+	private static DemandHistory instance;
+
+	private final Map<String, LabelDemand> demandByLabel = new HashMap<String, LabelDemand>();
+	private final Map<String, PrewarmedSlave> prewarmedSlaves = new HashMap<String, PrewarmedSlave>();
+	private transient boolean unsaved;
+
+	static class LabelDemand {
+		double[] expectedSlaves = new double[HOURS_PER_WEEK];
+		long currentHourIndex = -1;
+		int currentHourDemand;
+		double forecastAbsoluteError;
+		double actualDemandTotal;
+		int prewarmedUsed;
+		long wastedInstanceMinutes;
+	}
+
+	static class PrewarmedSlave {
+		String ec2Label;
+		long launchedAt;
+	}
+
+	public static synchronized DemandHistory get() {
+		if (instance == null)
+			instance = load();
+		return instance;
+	}
+
+	public void recordDemand(String ec2Label, int numberOfSlaves) {
+		recordDemand(ec2Label, numberOfSlaves, System.currentTimeMillis());
+	}
+
+	synchronized void recordDemand(String ec2Label, int numberOfSlaves, long now) {
+		LabelDemand demand = getOrCreate(ec2Label);
+		rollToHour(demand, hourIndexOf(now));
+		demand.currentHourDemand += numberOfSlaves;
+		unsaved = true;
+	}
+
+	/**
+	 * Highest expected demand for the hours between now and now + leadMinutes.
+	 */
+	public synchronized int forecast(String ec2Label, long now, int leadMinutes) {
+		LabelDemand demand = demandByLabel.get(ec2Label);
+		if (demand == null)
+			return 0;
+		if (rollToHour(demand, hourIndexOf(now)))
+			unsaved = true;
+
+		double expected = 0;
+		long lastHour = hourIndexOf(now + leadMinutes * 60L * 1000L);
+		for (long hour = hourIndexOf(now); hour <= lastHour; hour++)
+			expected = Math.max(expected, demand.expectedSlaves[hourOfWeek(hour)]);
+		return (int) Math.ceil(expected);
+	}
+
+	public synchronized List<String> getLabels() {
+		return new ArrayList<String>(demandByLabel.keySet());
+	}
+
+	public synchronized void recordPrewarmedSlaves(String ec2Label, List<EC2AbstractSlave> slaves) {
+		for (EC2AbstractSlave slave : slaves) {
+			PrewarmedSlave prewarmed = new PrewarmedSlave();
+			prewarmed.ec2Label = ec2Label;
+			prewarmed.launchedAt = System.currentTimeMillis();
+			prewarmedSlaves.put(slave.getNodeName(), prewarmed);
+		}
+		save();
+	}
+
+	public synchronized void markPrewarmedSlavesUsed(List<EC2AbstractSlave> allocatedSlaves) {
+		boolean changed = false;
+		for (EC2AbstractSlave slave : allocatedSlaves) {
+			PrewarmedSlave prewarmed = prewarmedSlaves.remove(slave.getNodeName());
+			if (prewarmed == null)
+				continue;
+			getOrCreate(prewarmed.ec2Label).prewarmedUsed++;
+			changed = true;
+		}
+		if (changed)
+			save();
+	}
+
+	public synchronized int countUnusedPrewarmedSlaves(String ec2Label) {
+		int count = 0;
+		for (PrewarmedSlave prewarmed : prewarmedSlaves.values()) {
+			if (prewarmed.ec2Label.equals(ec2Label))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Pre-warmed slaves that went away without ever being allocated are accounted as wasted instance-minutes.
+	 */
+	public synchronized void collectWastedPrewarmedSlaves() {
+		boolean changed = false;
+		long now = System.currentTimeMillis();
+		Iterator<Entry<String, PrewarmedSlave>> it = prewarmedSlaves.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<String, PrewarmedSlave> entry = it.next();
+			if (Jenkins.getInstance().getNode(entry.getKey()) != null)
+				continue;
+			PrewarmedSlave prewarmed = entry.getValue();
+			getOrCreate(prewarmed.ec2Label).wastedInstanceMinutes += (now - prewarmed.launchedAt) / (60 * 1000);
+			it.remove();
+			changed = true;
+		}
+		if (changed)
+			save();
+	}
+
+	/**
+	 * Saves the demand recorded since the last save, if any
+	 */
+	public synchronized void saveIfChanged() {
+		if (unsaved)
+			save();
+	}
+
+	public synchronized String getReport(String ec2Label) {
+		LabelDemand demand = demandByLabel.get(ec2Label);
+		if (demand == null)
+			return ec2Label + ": no demand recorded";
+		String accuracy = "n/a";
+		if (demand.actualDemandTotal > 0) {
+			double ratio = Math.max(0, 1 - demand.forecastAbsoluteError / demand.actualDemandTotal);
+			accuracy = String.format("%.1f%%", ratio * 100);
+		}
+		return ec2Label +
+				": forecast accuracy " + accuracy +
+				", pre-warmed slaves used " + demand.prewarmedUsed +
+				", wasted instance-minutes " + demand.wastedInstanceMinutes;
+	}
+
+	private LabelDemand getOrCreate(String ec2Label) {
+		LabelDemand demand = demandByLabel.get(ec2Label);
+		if (demand == null) {
+			demand = new LabelDemand();
+			demandByLabel.put(ec2Label, demand);
+		}
+		return demand;
+	}
+
+	/**
+	 * Folds the demand accumulated for the hours that already elapsed into the forecast,
+	 * measuring how far the forecast was from what actually happened. The demand of the current
+	 * hour goes to its own slot, and each hour without demand after it lowers its slot, each
+	 * slot of the week at most once. Returns whether anything changed.
+	 */
+	static boolean rollToHour(LabelDemand demand, long hourIndex) {
+		if (demand.currentHourIndex == -1) {
+			demand.currentHourIndex = hourIndex;
+			return true;
+		}
+		long elapsedHours = hourIndex - demand.currentHourIndex;
+		if (elapsedHours <= 0)
+			return false;
+		fold(demand, hourOfWeek(demand.currentHourIndex), demand.currentHourDemand);
+		long hoursWithoutDemand = Math.min(elapsedHours - 1, HOURS_PER_WEEK - 1);
+		for (long i = 1; i <= hoursWithoutDemand; i++)
+			fold(demand, hourOfWeek(demand.currentHourIndex + i), 0);
+		demand.currentHourIndex = hourIndex;
+		demand.currentHourDemand = 0;
+		return true;
+	}
+
+	private static void fold(LabelDemand demand, int slot, int actual) {
+		double forecast = demand.expectedSlaves[slot];
+		demand.forecastAbsoluteError += Math.abs(forecast - actual);
+		demand.actualDemandTotal += actual;
+		demand.expectedSlaves[slot] = SMOOTHING_FACTOR * actual + (1 - SMOOTHING_FACTOR) * forecast;
+	}
+
+	static long hourIndexOf(long timeInMillis) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(timeInMillis);
+		return (timeInMillis + calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET)) / (60L * 60L * 1000L);
+	}
+
+	static int hourOfWeek(long hourIndex) {
+		return (int) (hourIndex % HOURS_PER_WEEK);
+	}
+
+	private static XmlFile getConfigFile() {
+		return new XmlFile(Jenkins.XSTREAM, new File(Jenkins.getInstance().getRootDir(), "ec2-axis-demand-history.xml"));
+	}
+
+	private static DemandHistory load() {
+		XmlFile file = getConfigFile();
+		try {
+			if (file.exists())
+				return (DemandHistory) file.read();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not read EC2 axis demand history, starting from scratch", e);
+		}
+		return new DemandHistory();
+	}
+
+	private void save() {
+		unsaved = false;
+		try {
+			getConfigFile().write(this);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not save EC2 axis demand history", e);
+		}
+	}
+}
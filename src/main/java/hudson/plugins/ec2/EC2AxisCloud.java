@@ -2,36 +2,58 @@ package hudson.plugins.ec2;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Api;
 import hudson.model.Computer;
+import hudson.model.Descriptor.FormException;
 import hudson.model.Executor;
 import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.labels.LabelAtom;
+import hudson.plugins.ec2.utils.Ec2AxisExecutor;
 import hudson.slaves.Cloud;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
+import hudson.slaves.SlaveComputer;
 import hudson.util.TimeUnit2;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
 
 import jenkins.model.Jenkins;
+import jenkins.security.HMACConfidentialKey;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.jenkinsci.plugins.ec2axis.Ec2SafeNodeTaskWorker;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.KeyPair;
+import com.amazonaws.services.ec2.model.Tag;
 
 
 public class EC2AxisCloud extends AmazonEC2Cloud {
-	private static final String SLAVE_MATRIX_ENV_VAR_NAME = "MATRIX_EXEC_ID";
-	private static final String SLAVE_NUM_SEPARATOR = "__";
+	public static final String SLAVE_MATRIX_ENV_VAR_NAME = "MATRIX_EXEC_ID";
+	public static final String SLAVE_NUM_SEPARATOR = "__";
+	public static final String OWNER_TAG = "ec2-axis-owner";
 	private final EC2AxisPrivateKey ec2PrivateKey;
+	private transient InstanceReadinessPoller readinessPoller;
+	private transient AmazonEC2 sharedEc2;
+	/** Existing nodes picked by running allocations, once per allocation, until their cells are pending */
+	private static final List<String> allocatingNodes = new ArrayList<String>();
+	private static final HMACConfidentialKey BOOT_CALLBACK_KEY = new HMACConfidentialKey(EC2AxisCloud.class, "bootCallback");
 
 	@DataBoundConstructor
 	public EC2AxisCloud(String accessId, String secretKey, String region, String privateKey, String instanceCapStr, List<SlaveTemplate> templates) {
@@ -75,27 +97,92 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		return cloudToUse;
 	}
 	
+	/**
+	 * Template the axis node was allocated for, or null when it is not an axis node
+	 */
+	public static Ec2AxisSlaveTemplate templateOfAxisNode(Node node) {
+		String labelString = node.getLabelString();
+		if (labelString == null || !labelString.contains("$axis"))
+			return null;
+		LabelAtom ec2Label = new LabelAtom(StringUtils.substringBefore(labelString, "$axis"));
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			Ec2AxisSlaveTemplate template = ((EC2AxisCloud) cloud).getTemplateGivenLabel(ec2Label);
+			if (template != null)
+				return template;
+		}
+		return null;
+	}
+
 	public List<String> allocateSlavesLabels(
 			final EC2Logger logger, 
 			String ec2Label, 
 			Integer numberOfSlaves, 
 			Integer instanceBootTimeoutLimit, 
 			boolean alwaysCreateNewNodes, 
-			boolean createMatrixEnvironmentVariable) 
+			boolean packCellsPerExecutor,
+			Integer hedgeBootPercentile,
+			String requester,
+			String affinityKey,
+			double idleNodeShare,
+			Runnable idleNodesTaken) 
 	{
-		List<EC2AbstractSlave> onlineAndAvailableSlaves = determineOnlineAndAvailableSlaves(
-				logger, ec2Label, numberOfSlaves, alwaysCreateNewNodes);
+		DemandHistory.get().recordDemand(ec2Label, numberOfSlaves);
+		List<String> previousNodes = CellAffinity.previousNodes(affinityKey);
+		List<String> slaveLabels;
+		List<String> claimedNodes = new ArrayList<String>();
+		try {
+			if (packCellsPerExecutor)
+				slaveLabels = allocatePackedCellsLabels(logger, ec2Label, numberOfSlaves, alwaysCreateNewNodes, requester, previousNodes, idleNodeShare, claimedNodes, idleNodesTaken);
+			else
+				slaveLabels = allocateOneCellPerSlaveLabels(logger, ec2Label, numberOfSlaves, alwaysCreateNewNodes, requester, previousNodes, idleNodeShare, claimedNodes, idleNodesTaken);
+			CellLabels.allocated(requester, slaveLabels);
+		} finally {
+			synchronized (allocatingNodes) {
+				for (String nodeName : claimedNodes)
+					allocatingNodes.remove(nodeName);
+			}
+		}
+		if (affinityKey != null)
+			CellAffinity.remember(affinityKey, slaveLabels);
+		
+		if (hedgeBootPercentile != null && hedgeBootPercentile > 0)
+			HedgedLaunchSupervisor.start(logger, this, ec2Label, slaveLabels, hedgeBootPercentile, instanceBootTimeoutLimit, requester);
+		return slaveLabels;
+	}
+
+	private List<String> allocateOneCellPerSlaveLabels(
+			final EC2Logger logger, 
+			String ec2Label, 
+			Integer numberOfSlaves, 
+			boolean alwaysCreateNewNodes, 
+			String requester,
+			List<String> previousNodes,
+			double idleNodeShare,
+			List<String> claimedNodes,
+			Runnable idleNodesTaken) 
+	{
+		List<EC2AbstractSlave> onlineAndAvailableSlaves = claim(determineOnlineAndAvailableSlaves(
+				logger, ec2Label, numberOfSlaves, alwaysCreateNewNodes, previousNodes, idleNodeShare), claimedNodes);
+		DemandHistory.get().markPrewarmedSlavesUsed(onlineAndAvailableSlaves);
+		idleNodesTaken.run();
 		
 		int countOfRemainingLabelsToCreate = numberOfSlaves - onlineAndAvailableSlaves.size();
 		LinkedList<EC2AbstractSlave> allSlaves = new LinkedList<EC2AbstractSlave>();
 		allSlaves.addAll(onlineAndAvailableSlaves);
 
 		if (countOfRemainingLabelsToCreate > 0) {
-			List<EC2AbstractSlave> newSlaves = createMissingSlaves( logger, ec2Label, countOfRemainingLabelsToCreate);
+			List<EC2AbstractSlave> newSlaves = createMissingSlaves( logger, ec2Label, countOfRemainingLabelsToCreate, requester);
 			allSlaves.addAll(newSlaves);
 		}
+		if (!previousNodes.isEmpty()) {
+			List<EC2AbstractSlave> arrangedSlaves = CellAffinity.arrange(allSlaves, previousNodes);
+			allSlaves.clear();
+			allSlaves.addAll(arrangedSlaves);
+		}
 		
-		createMatrixEnvironmentVariableForAllocatedSlaves( createMatrixEnvironmentVariable, allSlaves);
+		removeMatrixEnvironmentVariable(allSlaves);
 		
 		List<String> slaveLabels = new ArrayList<String>();
 		for (EC2AbstractSlave slave : allSlaves) 
@@ -104,36 +191,167 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		return slaveLabels;
 	}
 
-	public void createMatrixEnvironmentVariableForAllocatedSlaves(
-			boolean createMatrixEnvironmentVariable,
-			LinkedList<EC2AbstractSlave> allSlaves) {
-		if (createMatrixEnvironmentVariable) {
-			int matrixId = 1;
-			for (EC2AbstractSlave ec2AbstractSlave : allSlaves) {
-				EnvVars slaveEnvVars = getSlaveEnvVars(ec2AbstractSlave);
-				slaveEnvVars.put(SLAVE_MATRIX_ENV_VAR_NAME, matrixId+"");
-				matrixId++;
+	/**
+	 * Places as many cells as there are executors on each node. Every cell gets its own label,
+	 * made of the node name and the cell number, which is added to the labels of the node.
+	 */
+	private List<String> allocatePackedCellsLabels(
+			final EC2Logger logger, 
+			String ec2Label, 
+			Integer numberOfCells, 
+			boolean alwaysCreateNewNodes,
+			String requester,
+			List<String> previousNodes,
+			double idleNodeShare,
+			List<String> claimedNodes,
+			Runnable idleNodesTaken) 
+	{
+		int executorsPerNode = Math.max(1, getTemplate(new LabelAtom(ec2Label)).getNumExecutors());
+		List<EC2AbstractSlave> allSlaves = new ArrayList<EC2AbstractSlave>();
+		int cellsOnExistingNodes = 0;
+		if (!alwaysCreateNewNodes) {
+			for (EC2AbstractSlave idleSlave : claim(findIdleSlavesToPack(logger, ec2Label, numberOfCells, previousNodes, idleNodeShare), claimedNodes)) {
+				allSlaves.add(idleSlave);
+				cellsOnExistingNodes += idleSlave.getNumExecutors();
 			}
+			DemandHistory.get().markPrewarmedSlavesUsed(allSlaves);
 		}
+		idleNodesTaken.run();
+		
+		int remainingCells = numberOfCells - cellsOnExistingNodes;
+		if (remainingCells > 0) {
+			int instancesToCreate = (remainingCells + executorsPerNode - 1) / executorsPerNode;
+			logger.println("Will create " + instancesToCreate + " nodes with " + executorsPerNode + " executors for " + remainingCells + " cells");
+			allSlaves.addAll(createMissingSlaves(logger, ec2Label, instancesToCreate, requester));
+		}
+		
+		List<String> cellLabels = new ArrayList<String>();
+		int cellId = 1;
+		removeMatrixEnvironmentVariable(allSlaves);
+		for (EC2AbstractSlave slave : allSlaves) {
+			List<String> slaveCellLabels = new ArrayList<String>();
+			for (int i = 0; i < slave.getNumExecutors() && cellId <= numberOfCells; i++, cellId++) 
+				slaveCellLabels.add(slave.getNodeName() + SLAVE_NUM_SEPARATOR + cellId);
+			try {
+				CellLabels.addToNode(slave, slaveCellLabels);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			cellLabels.addAll(slaveCellLabels);
+		}
+		return cellLabels;
+	}
+
+	/**
+	 * Only nodes with all executors idle and no pending cells are packed, so that the cell
+	 * numbers of a previous allocation that are still queued are not handed out again.
+	 */
+	private List<EC2AbstractSlave> findIdleSlavesToPack(EC2Logger logger, String ec2Label, int numberOfCells, List<String> previousNodes, double idleNodeShare) {
+		List<EC2AbstractSlave> candidates = new ArrayList<EC2AbstractSlave>();
+		Label label = Jenkins.getInstance().getLabel(getAxisLabel(ec2Label));
+		for (Node node : CellAffinity.preferPrevious(label.getNodes(), previousNodes)) {
+			if (idleNodeShare >= 1 && candidates.size() >= numberOfCells)
+				break;
+			Computer c = node.toComputer();
+			if (c == null || !isNodeOnlineAndAvailable(c) || !c.isIdle() || isUnhealthy(node) || CellLabels.hasPendingCells(node.getNodeName()))
+				continue;
+			candidates.add((EC2AbstractSlave) node);
+		}
+		int allowedNodes = idleNodesAllowed(candidates.size(), candidates.size(), idleNodeShare);
+		List<EC2AbstractSlave> idleSlaves = new ArrayList<EC2AbstractSlave>();
+		int cells = 0;
+		for (EC2AbstractSlave candidate : candidates) {
+			if (cells >= numberOfCells || idleSlaves.size() >= allowedNodes)
+				break;
+			idleSlaves.add(candidate);
+			cells += candidate.getNumExecutors();
+		}
+		logger.println("Idle nodes found to pack cells : " + idleSlaves.size());
+		return idleSlaves;
+	}
+
+	/**
+	 * Keeps the slaves that scale-in didn't withdraw, and marks them as being allocated so it leaves them
+	 * alone until their cells are pending. Their names are added to the claimed nodes, to release them.
+	 */
+	private List<EC2AbstractSlave> claim(List<EC2AbstractSlave> slaves, List<String> claimedNodes) {
+		List<EC2AbstractSlave> claimed = new ArrayList<EC2AbstractSlave>();
+		synchronized (allocatingNodes) {
+			for (EC2AbstractSlave slave : slaves) {
+				Computer c = slave.toComputer();
+				if (c == null || !c.isAcceptingTasks())
+					continue;
+				allocatingNodes.add(slave.getNodeName());
+				claimedNodes.add(slave.getNodeName());
+				claimed.add(slave);
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * Takes up to count of the idle slaves out of allocation, skipping the ones being allocated or with
+	 * pending cells. The withdrawn ones stop accepting tasks, so later allocations don't pick them either,
+	 * and slaves already withdrawn by someone else are skipped.
+	 */
+	static List<EC2AbstractSlave> withdrawFromAllocation(List<EC2AbstractSlave> idleSlaves, int count) {
+		List<EC2AbstractSlave> withdrawn = new ArrayList<EC2AbstractSlave>();
+		synchronized (allocatingNodes) {
+			for (EC2AbstractSlave slave : idleSlaves) {
+				if (withdrawn.size() >= count)
+					break;
+				Computer c = slave.toComputer();
+				if (!(c instanceof SlaveComputer) || !c.isIdle() || !c.isAcceptingTasks() || allocatingNodes.contains(slave.getNodeName())
+						|| CellLabels.hasPendingCells(slave.getNodeName()))
+					continue;
+				((SlaveComputer) c).setAcceptingTasks(false);
+				withdrawn.add(slave);
+			}
+		}
+		return withdrawn;
+	}
+
+	/**
+	 * Axis nodes of each label of the template, in the order of the template labels
+	 */
+	public Map<String, Set<Node>> getAxisNodesByLabel(SlaveTemplate template) {
+		Map<String, Set<Node>> nodesByLabel = new LinkedHashMap<String, Set<Node>>();
+		for (String ec2Label : template.getLabelString().split("\\s+")) {
+			if (!ec2Label.isEmpty())
+				nodesByLabel.put(ec2Label, Jenkins.getInstance().getLabel(getAxisLabel(ec2Label)).getNodes());
+		}
+		return nodesByLabel;
+	}
+
+	/**
+	 * The matrix execution id of a cell is contributed to its run from the cell registry, so a
+	 * value left in the node environment by an earlier allocation, which would override it, is removed.
+	 */
+	private void removeMatrixEnvironmentVariable(List<EC2AbstractSlave> allSlaves) {
+		for (EC2AbstractSlave slave : allSlaves) 
+			getSlaveEnvVars(slave).remove(SLAVE_MATRIX_ENV_VAR_NAME);
 	}
 
 	private List<EC2AbstractSlave> determineOnlineAndAvailableSlaves(
 			final EC2Logger logger, String ec2Label, Integer numberOfSlaves,
-			boolean alwaysCreateNewNodes) {
+			boolean alwaysCreateNewNodes,
+			List<String> previousNodes,
+			double idleNodeShare) {
 		if (alwaysCreateNewNodes){
 			logger.println("Will create new nodes for each slave ");
 			return new ArrayList<EC2AbstractSlave>();
 		}
-		return findOnlineEligibleSlavesToAllocate(logger, ec2Label, numberOfSlaves);
+		return findOnlineEligibleSlavesToAllocate(logger, ec2Label, numberOfSlaves, previousNodes, idleNodeShare);
 	}
 
 	private List<EC2AbstractSlave> createMissingSlaves(
 			EC2Logger logger, 
 			String ec2Label, 
-			int remainingLabelsToCreate) 
+			int remainingLabelsToCreate,
+			String requester) 
 	{
 		try {
-			return allocateSlavesAndLaunchThem(ec2Label, logger, remainingLabelsToCreate);
+			return allocateSlavesAndLaunchThem(ec2Label, logger, remainingLabelsToCreate, requester);
 		} catch (Exception e) {
 			logger.printStackTrace(e);
 			throw new RuntimeException(e);
@@ -143,17 +361,63 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 	private List<EC2AbstractSlave> allocateSlavesAndLaunchThem(
 			String ec2Label,
 			final EC2Logger logger, 
-			int remainingLabelsToCreate) throws IOException 
+			int remainingLabelsToCreate,
+			String requester) throws IOException 
 	{
 		logger.println("Will provision instances for label: " + ec2Label);
 		Ec2AxisSlaveTemplate slaveTemplate = getTemplate(new LabelAtom(ec2Label));
 		
-		List<EC2AbstractSlave> allocatedSlaves = slaveTemplate.provisionMultipleSlaves(logger, remainingLabelsToCreate);
-		 
-		for (EC2AbstractSlave ec2Slave : allocatedSlaves) 
-			ec2Slave.setLabelString(getAxisLabel(ec2Label));
-		
-		return allocatedSlaves;
+		List<ProvisioningOperation> operations = ProvisioningOperation.start(name, slaveTemplate.description, ec2Label, requester, remainingLabelsToCreate);
+		try {
+			slaveTemplate.provision(logger, operations);
+			return ProvisioningOperation.awaitRegistered(operations);
+		} finally {
+			// when some failed, the registered ones are left for later allocations, which only see axis nodes
+			for (EC2AbstractSlave ec2Slave : ProvisioningOperation.slavesOf(operations)) 
+				ec2Slave.setLabelString(getAxisLabel(ec2Label));
+		}
+	}
+
+	public List<EC2AbstractSlave> prewarmSlaves(EC2Logger logger, String ec2Label, int numberOfSlaves) {
+		return createMissingSlaves(logger, ec2Label, numberOfSlaves, "Predictive pre-warming");
+	}
+
+	public List<EC2AbstractSlave> provisionSlaves(EC2Logger logger, String ec2Label, int numberOfSlaves, String requester) {
+		return createMissingSlaves(logger, ec2Label, numberOfSlaves, requester);
+	}
+
+	/**
+	 * Registers a slave for a running instance of the template that has no node in Jenkins
+	 */
+	public EC2AbstractSlave adoptOrphanInstance(EC2Logger logger, Ec2AxisSlaveTemplate template, Instance instance) throws IOException {
+		String ec2Label = StringUtils.split(template.getLabelString())[0];
+		final EC2OndemandSlave adoptedSlave;
+		try {
+			adoptedSlave = template.newOndemandSlave(instance);
+		} catch (FormException e) {
+			throw new IOException(e);
+		}
+		adoptedSlave.setLabelString(getAxisLabel(ec2Label));
+		List<EC2AbstractSlave> adoptedSlaves = new ArrayList<EC2AbstractSlave>();
+		adoptedSlaves.add(adoptedSlave);
+		Utils.addNodesAndWait(adoptedSlaves);
+		logger.println("Adopted orphan instance " + instance.getInstanceId() + " as " + adoptedSlave.getNodeName());
+		List<ProvisioningOperation> operations = ProvisioningOperation.start(name, template.description, ec2Label, "Orphan instance reconciler", 1);
+		operations.get(0).setInstanceId(instance.getInstanceId());
+		operations.get(0).setSlave(adoptedSlave);
+		operations.get(0).reached(ProvisioningOperation.Stage.REGISTERED);
+		OnDemandSlaveLauncher.launchSlaves(operations, template, logger);
+		return adoptedSlave;
+	}
+
+	public int countOnlineAvailableSlaves(String ec2Label) {
+		Label label = Jenkins.getInstance().getLabel(getAxisLabel(ec2Label));
+		int count = 0;
+		for (Node node : label.getNodes()) {
+			if (isNodeAvailable(node))
+				count++;
+		}
+		return count;
 	}
 
 	private String getAxisLabel(String ec2Label) {
@@ -172,7 +436,9 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 	private LinkedList<EC2AbstractSlave> findOnlineEligibleSlavesToAllocate(
 			EC2Logger logger,
 			String ec2Label, 
-			Integer numberOfSlaves) 
+			Integer numberOfSlaves,
+			List<String> previousNodes,
+			double idleNodeShare) 
 	{
 		logger.println("Starting selection of labels with idle executors for job");
 		final LinkedList<EC2AbstractSlave> onlineAndAvailableLabels = new LinkedList<EC2AbstractSlave>();
@@ -180,21 +446,43 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		
 		Label label = Jenkins.getInstance().getLabel(getAxisLabel(ec2Label));
 		
-		for (Node node : label.getNodes()) {
+		for (Node node : CellAffinity.preferPrevious(label.getNodes(), previousNodes)) {
 			if(!isNodeAvailable(logger, node)) 
 				continue;
 			
 			EC2AbstractSlave ec2AbstractSlave = (EC2AbstractSlave) node;
 			onlineAndAvailableLabels.add(ec2AbstractSlave);
 			
-			if (onlineAndAvailableLabels.size() >= numberOfSlaves)
+			if (idleNodeShare >= 1 && onlineAndAvailableLabels.size() >= numberOfSlaves)
 				break;
 		}
 		
+		int allowedNodes = idleNodesAllowed(onlineAndAvailableLabels.size(), numberOfSlaves, idleNodeShare);
+		if (onlineAndAvailableLabels.size() > allowedNodes) {
+			logger.println("Other builds wait for " + ec2Label + ". Taking " + allowedNodes + " of the " + onlineAndAvailableLabels.size() + " idle nodes");
+			while (onlineAndAvailableLabels.size() > allowedNodes)
+				onlineAndAvailableLabels.removeLast();
+		}
 		logger.println("Online labels found : " + onlineAndAvailableLabels.size());
+		if (!previousNodes.isEmpty()) {
+			int affinityHits = 0;
+			for (EC2AbstractSlave slave : onlineAndAvailableLabels) {
+				if (previousNodes.contains(slave.getNodeName()))
+					affinityHits++;
+			}
+			logger.println("Nodes that ran cells of the previous build : " + affinityHits);
+		}
+		Ec2AxisMetrics.idleNodeLookup(name, ec2Label, numberOfSlaves, onlineAndAvailableLabels.size());
 		return onlineAndAvailableLabels;
 	}
 
+	/**
+	 * Idle nodes an allocation may take, given its share of the idle nodes available
+	 */
+	static int idleNodesAllowed(int available, int wanted, double idleNodeShare) {
+		return Math.min(wanted, (int) Math.ceil(available * Math.min(1, idleNodeShare)));
+	}
+
 	private static List<SlaveTemplate> replaceByEC2AxisSlaveTemplates(List<SlaveTemplate> templates) {
 		List<SlaveTemplate> ec2axisTemplates = new LinkedList<SlaveTemplate>();
 		for (SlaveTemplate slaveTemplate : templates) {
@@ -203,7 +491,7 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		return ec2axisTemplates;
 	}
 
-	private Ec2AxisSlaveTemplate getTemplateGivenLabel(Label label) {
+	Ec2AxisSlaveTemplate getTemplateGivenLabel(Label label) {
 		String displayName = label.getDisplayName();
 		if (displayName == null)
 			return null;
@@ -217,15 +505,35 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 	private boolean isNodeAvailable(EC2Logger logger, Node node) {
 		String nodeName = node.getDisplayName();
 		logger.println("Checking node : " + nodeName);
+		if (isUnhealthy(node)) {
+			logger.println("Skipping " + nodeName + ", its health score is " + NodeHealth.scoreOf(node.getNodeName()));
+			return false;
+		}
+		return isNodeAvailable(node);
+	}
+
+	private boolean isNodeAvailable(Node node) {
 		Computer c = node.toComputer();
+		if (c == null)
+			return false;
 		if (c.isOffline() || c.isConnecting()) 
 			return false;
+		if (isUnhealthy(node))
+			return false;
 		if (isNodeOnlineAndAvailable(c) && hasAvailableExecutor(c))
 			return true;
 		
 		return false;
 	}
 
+	private boolean isUnhealthy(Node node) {
+		String labelString = node.getLabelString();
+		if (labelString == null || !labelString.contains("$axis"))
+			return false;
+		Ec2AxisSlaveTemplate template = getTemplateGivenLabel(new LabelAtom(StringUtils.substringBefore(labelString, "$axis")));
+		return template != null && template.isUnhealthy(node);
+	}
+
 	private boolean hasAvailableExecutor(Computer c) {
 		final List<Executor> executors = c.getExecutors();
 		for (Executor executor : executors) {
@@ -245,6 +553,114 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		public String getDisplayName() {
 	        return "EC2 Axis Amazon Cloud";
 	    }
+
+	    @Override
+	    public Cloud newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+	    	EC2AxisCloud cloud = (EC2AxisCloud) super.newInstance(req, formData);
+	    	cloud.configureTemplatesAxisOptions(formData.get("templates"));
+	    	return cloud;
+	    }
+	}
+
+	private void configureTemplatesAxisOptions(Object templatesFormData) {
+		List<JSONObject> templatesForms = new ArrayList<JSONObject>();
+		if (templatesFormData instanceof JSONObject)
+			templatesForms.add((JSONObject) templatesFormData);
+		if (templatesFormData instanceof JSONArray) {
+			for (Object templateForm : (JSONArray) templatesFormData)
+				templatesForms.add((JSONObject) templateForm);
+		}
+		List<? extends SlaveTemplate> templates = getTemplates();
+		for (int i = 0; i < templatesForms.size() && i < templates.size(); i++)
+			((Ec2AxisSlaveTemplate) templates.get(i)).configureAxisOptions(templatesForms.get(i));
+	}
+
+	public synchronized InstanceReadinessPoller getReadinessPoller() {
+		if (readinessPoller == null) {
+			readinessPoller = new InstanceReadinessPoller(connectShared(), new EC2Logger(Logger.getLogger(InstanceReadinessPoller.class.getName())));
+		}
+		return readinessPoller;
+	}
+
+	/**
+	 * Client shared by the threads that watch instances of this cloud, so their describe calls get coalesced
+	 */
+	public synchronized AmazonEC2 connectShared() {
+		if (sharedEc2 == null)
+			sharedEc2 = AmazonEC2Coalescing.wrap(AmazonEC2Insistent.wrap(connect(), new EC2Logger(Logger.getLogger(AmazonEC2Insistent.class.getName()))));
+		return sharedEc2;
+	}
+
+	/**
+	 * Provisioning operations of this cloud's templates that are not done yet
+	 */
+	public List<ProvisioningOperation> getInFlightProvisioning() {
+		List<ProvisioningOperation> operations = new ArrayList<ProvisioningOperation>();
+		for (ProvisioningOperation operation : ProvisioningOperation.getInFlight()) {
+			if (name.equals(operation.getCloudName()))
+				operations.add(operation);
+		}
+		return operations;
+	}
+
+	/**
+	 * Url of the provisioning page, relative to the root url of Jenkins
+	 */
+	public String getProvisioningUrl() {
+		return "cloud/" + Util.rawEncode(name) + "/provisioning";
+	}
+
+	public synchronized int getPendingReadinessChecks() {
+		return readinessPoller == null ? 0 : readinessPoller.getPendingCount();
+	}
+
+	/**
+	 * Status of the in-flight provisioning, polled by the provisioning page
+	 */
+	public void doProvisioningStatus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		JSONArray operations = new JSONArray();
+		JSONObject stageCounts = new JSONObject();
+		for (ProvisioningOperation operation : getInFlightProvisioning()) {
+			String stage = operation.getStage() == null ? "PENDING" : operation.getStage().toString();
+			EC2AbstractSlave slave = operation.getSlave();
+			JSONObject json = new JSONObject();
+			json.put("requester", operation.getRequester());
+			json.put("label", operation.getEc2Label());
+			json.put("template", operation.getTemplateDescription());
+			json.put("instanceId", StringUtils.defaultString(operation.getInstanceId()));
+			json.put("node", slave == null ? "" : slave.getNodeName());
+			json.put("stage", stage);
+			json.put("timeInStage", Util.getTimeSpanString(operation.getTimeInStage()));
+			operations.add(json);
+			stageCounts.put(stage, stageCounts.optInt(stage, 0) + 1);
+		}
+		JSONObject status = new JSONObject();
+		status.put("operations", operations);
+		status.put("stageCounts", stageCounts);
+		status.put("nodeRegistrationQueue", Ec2SafeNodeTaskWorker.getQueueDepth());
+		status.put("executorQueue", Ec2AxisExecutor.get().getQueuedTasks());
+		status.put("executorRunning", Ec2AxisExecutor.get().getRunningTasks());
+		status.put("executorMode", Ec2AxisExecutor.get().getMode().toString());
+		status.put("pendingReadinessChecks", getPendingReadinessChecks());
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(status.toString());
+	}
+
+	/**
+	 * Tag put on every instance launched by this cloud, so the instances of another cloud or
+	 * controller, or launched by hand, are never taken for orphans
+	 */
+	public Tag getOwnerTag() {
+		return new Tag(OWNER_TAG, name + "@" + Jenkins.getInstance().getLegacyInstanceId());
+	}
+
+	public String getBootCallbackToken() {
+		return BOOT_CALLBACK_KEY.mac(name);
+	}
+
+	public boolean isValidBootCallbackToken(String token) {
+		return token != null && BOOT_CALLBACK_KEY.checkMac(name, token);
 	}
 
 	public KeyPair getKeyPair(AmazonEC2 ec2) throws AmazonClientException, IOException {
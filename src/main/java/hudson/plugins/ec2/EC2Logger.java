@@ -3,24 +3,46 @@ package hudson.plugins.ec2;
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class EC2Logger {
 
 	private PrintStream printStream;
+	private Logger logger;
 
 	public EC2Logger(PrintStream printStream) {
 		this.printStream = printStream;
 	}
-	
+
+	/**
+	 * For background work that has no build or computer log to write to
+	 */
+	public EC2Logger(Logger logger) {
+		this.logger = logger;
+	}
+
 	public void println(String string) {
+		if (logger != null) {
+			logger.info(string);
+			return;
+		}
 		printStream.println(new SimpleDateFormat().format(new Date()) + " : "+string);
 	}
 
 	public void print(String string) {
+		if (logger != null) {
+			logger.info(string);
+			return;
+		}
 		printStream.print(string);
 	}
 
 	public void printStackTrace(Exception e) {
+		if (logger != null) {
+			logger.log(Level.WARNING, e.getMessage(), e);
+			return;
+		}
 		e.printStackTrace(printStream);
 	}
 
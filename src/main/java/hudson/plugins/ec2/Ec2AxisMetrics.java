@@ -0,0 +1,266 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.plugins.ec2.ProvisioningOperation.Stage;
+import hudson.plugins.ec2.utils.Ec2AxisExecutor;
+import hudson.slaves.Cloud;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.ec2axis.Ec2SafeNodeTaskWorker;
+
+/**
+ * Counters, gauges and histograms of the plugin activity, exported in the Prometheus text format.
+ * Labels are given as name/value pairs.
+ */
+public class Ec2AxisMetrics {
+	static final double[] DURATION_BUCKETS_SECONDS = {1, 5, 10, 30, 60, 120, 300, 600, 1200, 1800};
+
+	private static final Ec2AxisMetrics instance = new Ec2AxisMetrics();
+
+	private enum Type {
+		COUNTER, GAUGE, HISTOGRAM
+	}
+
+	private static class Family {
+		final Type type;
+		final String help;
+		final Map<String, Sample> samples = new TreeMap<String, Sample>();
+
+		Family(Type type, String help) {
+			this.type = type;
+			this.help = help;
+		}
+	}
+
+	private static class Sample {
+		double value;
+		long count;
+		final long[] bucketCounts = new long[DURATION_BUCKETS_SECONDS.length];
+	}
+
+	private final Map<String, Family> families = new TreeMap<String, Family>();
+
+	public static Ec2AxisMetrics get() {
+		return instance;
+	}
+
+	public static void stageReached(ProvisioningOperation operation, Stage stage, long millisSinceRequest) {
+		instance.observeDuration("ec2_axis_provisioning_stage_seconds", "Time from the instance request until the provisioning stage is reached",
+				millisSinceRequest, "cloud", operation.getCloudName(), "template", operation.getTemplateDescription(),
+				"ec2label", operation.getEc2Label(), "stage", stage.toString());
+	}
+
+	public static void spotFulfilled(ProvisioningOperation operation) {
+		instance.observeDuration("ec2_axis_spot_fulfilment_seconds", "Time from the spot request until it got an instance",
+				System.currentTimeMillis() - operation.getStartedAt(), "cloud", operation.getCloudName(),
+				"template", operation.getTemplateDescription(), "ec2label", operation.getEc2Label());
+	}
+
+	/**
+	 * @param outcome "ok" or the AWS error code
+	 */
+	public static void awsCall(String method, String outcome) {
+		instance.increment("ec2_axis_aws_api_calls_total", "AWS API calls by method and outcome", "method", method, "outcome", outcome);
+	}
+
+	public static void awsRetry(String method, String errorCode) {
+		instance.increment("ec2_axis_aws_api_retries_total", "AWS API calls retried by method and error code", "method", method, "error_code", errorCode);
+	}
+
+	/**
+	 * Counts the nodes an axis asked for and the idle nodes it found. Their ratio is the idle node hit ratio.
+	 */
+	public static void idleNodeLookup(String cloud, String ec2Label, int requested, int found) {
+		instance.add("ec2_axis_idle_node_requests_total", "Nodes requested by axes", requested, "cloud", cloud, "ec2label", ec2Label);
+		instance.add("ec2_axis_idle_node_hits_total", "Requested nodes served by idle online nodes", found, "cloud", cloud, "ec2label", ec2Label);
+	}
+
+	public static void terminated(String cloud, String template, String reason, int count) {
+		instance.add("ec2_axis_node_terminations_total", "Axis nodes and instances terminated by reason", count,
+				"cloud", cloud, "template", template, "reason", reason);
+	}
+
+	public static void terminated(EC2AbstractSlave slave, String reason) {
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			for (SlaveTemplate template : ((EC2AxisCloud) cloud).getTemplates()) {
+				if (((Ec2AxisSlaveTemplate) template).isAxisNode(slave)) {
+					terminated(cloud.name, template.description, reason, 1);
+					return;
+				}
+			}
+		}
+		terminated("", slave.getNodeDescription(), reason, 1);
+	}
+
+	public static void stoppedPoolSize(Ec2AxisSlaveTemplate template, int size) {
+		instance.setGauge("ec2_axis_stopped_pool_size", "Stopped instances kept in the pool of the template, as of the last pool check", size,
+				"cloud", template.getParent().name, "template", template.description);
+	}
+
+	/**
+	 * Sets the gauges that are read from the current state of Jenkins. They are computed apart and
+	 * swapped in at once, so a concurrent export never sees them half refreshed.
+	 */
+	public static void refreshGauges() {
+		Ec2AxisMetrics refreshed = new Ec2AxisMetrics();
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			for (SlaveTemplate template : ((EC2AxisCloud) cloud).getTemplates()) {
+				for (Map.Entry<String, Set<Node>> label : ((EC2AxisCloud) cloud).getAxisNodesByLabel(template).entrySet())
+					refreshed.refreshNodeGauges(cloud.name, label.getKey(), label.getValue());
+			}
+			for (ProvisioningOperation operation : ((EC2AxisCloud) cloud).getInFlightProvisioning()) {
+				String stage = operation.getStage() == null ? "PENDING" : operation.getStage().toString();
+				refreshed.incrementGauge("ec2_axis_provisioning_in_flight", "Instances being provisioned by current stage",
+						"cloud", cloud.name, "template", operation.getTemplateDescription(), "ec2label", operation.getEc2Label(), "stage", stage);
+			}
+		}
+		Ec2AxisExecutor executor = Ec2AxisExecutor.get();
+		refreshed.setGauge("ec2_axis_executor_queued_tasks", "Background tasks waiting for a thread", executor.getQueuedTasks());
+		refreshed.setGauge("ec2_axis_executor_running_tasks", "Background tasks running", executor.getRunningTasks());
+		refreshed.setGauge("ec2_axis_node_registration_queue", "Node additions and removals waiting to run", Ec2SafeNodeTaskWorker.getQueueDepth());
+		instance.replaceFamilies(refreshed, "ec2_axis_nodes", "ec2_axis_provisioning_in_flight", "ec2_axis_executor_queued_tasks",
+				"ec2_axis_executor_running_tasks", "ec2_axis_node_registration_queue");
+	}
+
+	private void refreshNodeGauges(String cloud, String ec2Label, Set<Node> nodes) {
+		int idle = 0, busy = 0, offline = 0;
+		for (Node node : nodes) {
+			Computer computer = node.toComputer();
+			if (computer == null || computer.isOffline())
+				offline++;
+			else if (computer.isIdle())
+				idle++;
+			else
+				busy++;
+		}
+		String help = "Axis nodes by state";
+		setGauge("ec2_axis_nodes", help, idle, "cloud", cloud, "ec2label", ec2Label, "state", "idle");
+		setGauge("ec2_axis_nodes", help, busy, "cloud", cloud, "ec2label", ec2Label, "state", "busy");
+		setGauge("ec2_axis_nodes", help, offline, "cloud", cloud, "ec2label", ec2Label, "state", "offline");
+	}
+
+	public synchronized void increment(String name, String help, String... labels) {
+		add(name, help, 1, labels);
+	}
+
+	public synchronized void add(String name, String help, double amount, String... labels) {
+		sample(name, Type.COUNTER, help, labels).value += amount;
+	}
+
+	public synchronized void setGauge(String name, String help, double value, String... labels) {
+		sample(name, Type.GAUGE, help, labels).value = value;
+	}
+
+	public synchronized void incrementGauge(String name, String help, String... labels) {
+		sample(name, Type.GAUGE, help, labels).value++;
+	}
+
+	/**
+	 * Replaces the families of the given names with the ones of the source, so label values that
+	 * no longer exist aren't exported. The source must not be used afterwards.
+	 */
+	public synchronized void replaceFamilies(Ec2AxisMetrics source, String... names) {
+		for (String name : names) {
+			Family family = source.families.get(name);
+			if (family == null)
+				families.remove(name);
+			else
+				families.put(name, family);
+		}
+	}
+
+	public synchronized void observeDuration(String name, String help, long durationMillis, String... labels) {
+		Sample sample = sample(name, Type.HISTOGRAM, help, labels);
+		double seconds = durationMillis / 1000.0;
+		sample.value += seconds;
+		sample.count++;
+		for (int i = 0; i < DURATION_BUCKETS_SECONDS.length; i++) {
+			if (seconds <= DURATION_BUCKETS_SECONDS[i])
+				sample.bucketCounts[i]++;
+		}
+	}
+
+	public synchronized String export() {
+		StringBuilder out = new StringBuilder();
+		for (Entry<String, Family> entry : families.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(family.type.toString().toLowerCase()).append('\n');
+			for (Entry<String, Sample> sampleEntry : family.samples.entrySet()) {
+				String labels = sampleEntry.getKey();
+				Sample sample = sampleEntry.getValue();
+				if (family.type != Type.HISTOGRAM) {
+					out.append(name).append(braces(labels)).append(' ').append(format(sample.value)).append('\n');
+					continue;
+				}
+				for (int i = 0; i < DURATION_BUCKETS_SECONDS.length; i++) {
+					String le = "le=\"" + format(DURATION_BUCKETS_SECONDS[i]) + "\"";
+					out.append(name).append("_bucket").append(braces(join(labels, le))).append(' ').append(sample.bucketCounts[i]).append('\n');
+				}
+				out.append(name).append("_bucket").append(braces(join(labels, "le=\"+Inf\""))).append(' ').append(sample.count).append('\n');
+				out.append(name).append("_sum").append(braces(labels)).append(' ').append(format(sample.value)).append('\n');
+				out.append(name).append("_count").append(braces(labels)).append(' ').append(sample.count).append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	private Sample sample(String name, Type type, String help, String... labels) {
+		Family family = families.get(name);
+		if (family == null) {
+			family = new Family(type, help);
+			families.put(name, family);
+		}
+		String key = labelsOf(labels);
+		Sample sample = family.samples.get(key);
+		if (sample == null) {
+			sample = new Sample();
+			family.samples.put(key, sample);
+		}
+		return sample;
+	}
+
+	private static String labelsOf(String... labels) {
+		Map<String, String> pairs = new LinkedHashMap<String, String>();
+		for (int i = 0; i + 1 < labels.length; i += 2)
+			pairs.put(labels[i], labels[i + 1] == null ? "" : labels[i + 1]);
+		StringBuilder out = new StringBuilder();
+		for (Entry<String, String> pair : pairs.entrySet()) {
+			if (out.length() > 0)
+				out.append(',');
+			out.append(pair.getKey()).append("=\"").append(escape(pair.getValue())).append('"');
+		}
+		return out.toString();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String join(String labels, String label) {
+		return labels.isEmpty() ? label : labels + "," + label;
+	}
+
+	private static String braces(String labels) {
+		return labels.isEmpty() ? "" : "{" + labels + "}";
+	}
+
+	private static String format(double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value))
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+}
@@ -0,0 +1,41 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Exposes {@link Ec2AxisMetrics} at /ec2-axis-metrics/ in the Prometheus text format.
+ * Scrapers need the read permission, for instance with an API token.
+ */
+@Extension
+public class Ec2AxisMetricsAction implements RootAction {
+
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return null;
+	}
+
+	@Override
+	public String getUrlName() {
+		return "ec2-axis-metrics";
+	}
+
+	public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+		Ec2AxisMetrics.refreshGauges();
+		rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		rsp.getWriter().print(Ec2AxisMetrics.get().export());
+	}
+}
@@ -0,0 +1,46 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.slaves.Cloud;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Links the in-flight provisioning page of each axis cloud from the manage page
+ */
+@Extension
+public class Ec2AxisProvisioningLink extends ManagementLink {
+
+	@Override
+	public String getIconFileName() {
+		return getClouds().isEmpty() ? null : "computer.png";
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "EC2 Axis provisioning";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Instances the EC2 axis clouds are launching, and the stage each of them is in.";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "ec2-axis-provisioning";
+	}
+
+	public List<EC2AxisCloud> getClouds() {
+		List<EC2AxisCloud> clouds = new ArrayList<EC2AxisCloud>();
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (cloud instanceof EC2AxisCloud)
+				clouds.add((EC2AxisCloud) cloud);
+		}
+		return clouds;
+	}
+}
@@ -1,21 +1,35 @@
 package hudson.plugins.ec2;
 
+import hudson.Util;
+import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.model.Descriptor.FormException;
+import hudson.model.labels.LabelAtom;
 import hudson.plugins.ec2.utils.ExecutorUtils;
 import hudson.slaves.NodeProperty;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.lang.StringUtils;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
 import com.amazonaws.services.ec2.model.DescribeSecurityGroupsRequest;
 import com.amazonaws.services.ec2.model.DescribeSecurityGroupsResult;
 import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryRequest;
@@ -23,6 +37,7 @@ import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryResult;
 import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
 import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
 import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.KeyPair;
@@ -35,7 +50,40 @@ import com.amazonaws.services.ec2.model.Tag;
 
 public class Ec2AxisSlaveTemplate extends SlaveTemplate {
 
+	private static final int DEFAULT_PREWARM_LEAD_MINUTES = 30;
+	private static final String DEFAULT_WORKSPACE_CACHE_DEVICE = "/dev/xvdz";
+	private static final int DEFAULT_WORKSPACE_CACHE_SIZE_GB = 50;
+	private static final int DEFAULT_WORKSPACE_CACHE_SNAPSHOT_HOURS = 24;
+	private static final int DEFAULT_SCALE_IN_DELAY_MINUTES = 10;
+	private static final int DEFAULT_SCALE_IN_BATCH_SIZE = 5;
+	private static final int DEFAULT_DEAD_NODE_MINUTES = 15;
+
+	private static final Map<String, List<BlockDeviceMapping>> amiBlockDeviceMappings = new ConcurrentHashMap<String, List<BlockDeviceMapping>>();
+
 	private transient String instanceLabel;
+	private transient LaunchDefinition launchDefinition;
+	private transient int launchDefinitionVersion;
+	private int prewarmInstanceCap;
+	private int prewarmLeadMinutes;
+	private int stoppedPoolTarget;
+	private int stoppedPoolMaxAgeMinutes;
+	private boolean preferNewInstances;
+	private boolean announceBootCompletion;
+	private boolean spotChannelOverSsh;
+	private boolean workspaceCache;
+	private boolean instanceStoreRaid;
+	private String workspaceCacheDevice;
+	private int workspaceCacheSizeGb;
+	private int workspaceCacheSnapshotHours;
+	private boolean scaleIn;
+	private int scaleInIdleBuffer;
+	private int scaleInDelayMinutes;
+	private int scaleInBatchSize;
+	private int deadNodeMinutes;
+	private int launchBatchWindowMillis;
+	private boolean reuseLaunchDefinition;
+	private int minNodeHealthScore;
+	private boolean recycleUnhealthyNodes;
 
 	public Ec2AxisSlaveTemplate(SlaveTemplate toDecorate) {
 		super(
@@ -66,27 +114,89 @@ public class Ec2AxisSlaveTemplate extends SlaveTemplate {
 			 toDecorate.getLaunchTimeoutStr());
 	}
 	
-	public List<EC2AbstractSlave> provisionMultipleSlaves(EC2Logger logger, int numberOfInstancesToCreate) {
+	/**
+	 * Launches the instances of the operations and registers their slaves. With a launch batching window, the
+	 * operations may be launched by the batch of another caller instead.
+	 */
+	void provision(EC2Logger logger, List<ProvisioningOperation> operations) {
+		if (launchBatchWindowMillis > 0) {
+			String ec2Label = operations.get(0).getEc2Label();
+			List<ProvisioningOperation> batch = LaunchBatcher.join(getParent().name + "/" + description + "/" + ec2Label, operations, launchBatchWindowMillis);
+			if (batch == null) {
+				logger.println("Instances for " + ec2Label + " will be launched with the requests of other builds");
+				return;
+			}
+			if (batch.size() > operations.size())
+				logger.println("Launching " + batch.size() + " instances for " + ec2Label + " merged from the requests of several builds");
+			operations = batch;
+		}
 		try {
 			AmazonEC2 ec2 = AmazonEC2Insistent.wrap(getParent().connect(), logger);
-			KeyPair keyPair = getKeyPair(ec2);
-			List<String> ec2SecurityGroups = getEc2SecurityGroups(ec2);
+			LaunchDefinition definition = getLaunchDefinition(ec2, logger);
 			
 			if (spotConfig != null) {
-				SpotInstanceProvider spotInstanceFactory = new SpotInstanceProvider(keyPair, ec2SecurityGroups, this, logger);
-				return spotInstanceFactory.provisionMultiple(numberOfInstancesToCreate);
+				SpotInstanceProvider spotInstanceFactory = new SpotInstanceProvider(definition, this, logger);
+				spotInstanceFactory.provisionMultiple(operations);
+				return;
 			}
 			
-			OnDemandInstanceProvider reservedInstanceProvider = new OnDemandInstanceProvider(keyPair, ec2SecurityGroups, this, logger);
-			return reservedInstanceProvider.provisionMultiple(numberOfInstancesToCreate);
+			OnDemandInstanceProvider reservedInstanceProvider = new OnDemandInstanceProvider(definition, this, logger);
+			reservedInstanceProvider.provisionMultiple(operations);
 			
 		} catch (Exception e) {
+			if (e instanceof AmazonServiceException && StringUtils.startsWith(((AmazonServiceException) e).getErrorCode(), "Invalid"))
+				forgetLaunchDefinition();
+			ProvisioningOperation.failUnregistered(operations, e);
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * The launch definition of the current configuration. When the template reuses it, it is only resolved
+	 * again once the configuration hash changes.
+	 */
+	synchronized LaunchDefinition getLaunchDefinition(AmazonEC2 ec2, EC2Logger logger) throws IOException {
+		String userData = getAxisUserData(logger);
+		if (reuseLaunchDefinition && launchDefinition != null && launchDefinition.getConfigHash().equals(LaunchDefinition.configHashOf(this, userData)))
+			return launchDefinition;
+		launchDefinition = LaunchDefinition.resolve(ec2, this, userData, ++launchDefinitionVersion);
+		if (reuseLaunchDefinition)
+			logger.println("Launch definition " + launchDefinition.getVersion() + " of " + description + " resolved for configuration " + launchDefinition.getConfigHash());
+		return launchDefinition;
+	}
+
+	/**
+	 * Makes the next launch resolve the definition again, when EC2 rejected something it refers to
+	 */
+	synchronized void forgetLaunchDefinition() {
+		launchDefinition = null;
+	}
 
-	private KeyPair getKeyPair(AmazonEC2 ec2) throws IOException, AmazonClientException{
+	public boolean isReuseLaunchDefinition() {
+		return reuseLaunchDefinition;
+	}
+
+	/**
+	 * Health score below which idle nodes don't get cells, from 0 to {@link NodeHealth#MAX_SCORE}. 0 disables the scoring
+	 */
+	public int getMinNodeHealthScore() {
+		return Math.max(0, Math.min(NodeHealth.MAX_SCORE, minNodeHealthScore));
+	}
+
+	public boolean isRecycleUnhealthyNodes() {
+		return recycleUnhealthyNodes;
+	}
+
+	/**
+	 * Whether the node scores too low to get cells
+	 */
+	public boolean isUnhealthy(Node node) {
+		int minScore = getMinNodeHealthScore();
+		return minScore > 0 && NodeHealth.scoreOf(node.getNodeName()) < minScore;
+	}
+
+
+	KeyPair getKeyPair(AmazonEC2 ec2) throws IOException, AmazonClientException{
     	EC2AxisCloud ec2AxisCloud = (EC2AxisCloud)getParent();
     	KeyPair keyPair = ec2AxisCloud.getKeyPair(ec2);
     	
@@ -99,7 +209,7 @@ public class Ec2AxisSlaveTemplate extends SlaveTemplate {
     /**
      * Get a list of security group ids for the slave
      */
-    private List<String> getEc2SecurityGroups(AmazonEC2 ec2) throws AmazonClientException{
+    List<String> getEc2SecurityGroups(AmazonEC2 ec2) throws AmazonClientException{
     	List<String> group_ids = new ArrayList<String>();
 
 		DescribeSecurityGroupsRequest group_req = new DescribeSecurityGroupsRequest();
@@ -131,6 +241,44 @@ public class Ec2AxisSlaveTemplate extends SlaveTemplate {
 		return group_ids;
     }
     
+    /**
+     * Filters matching the instances launched from this template in the given states
+     */
+    List<Filter> getInstanceFilters(KeyPair keyPair, List<String> ec2SecurityGroups, String... instanceStates) {
+		List<Filter> describeInstanceFilters = new ArrayList<Filter>();
+		describeInstanceFilters.add(new Filter("image-id").withValues(ami));
+		if (StringUtils.isNotBlank(zone)) {
+		    describeInstanceFilters.add(new Filter("availability-zone").withValues(zone));
+		}
+
+		if (StringUtils.isNotBlank(subnetId)) {
+		   describeInstanceFilters.add(new Filter("subnet-id").withValues(subnetId));
+
+		   /* If we have a subnet ID then we can only use VPC security groups */
+		   if (!getSecurityGroupSet().isEmpty()) {
+		      if (!ec2SecurityGroups.isEmpty()) {
+		         describeInstanceFilters.add(new Filter("instance.group-id").withValues(ec2SecurityGroups));
+		      }
+		   }
+		} else {
+		   /* No subnet: we can use standard security groups by name */
+			if (getSecurityGroupSet().size() > 0)
+				describeInstanceFilters.add(new Filter("group-name").withValues(getSecurityGroupSet()));
+		}
+		
+		describeInstanceFilters.add(new Filter("key-name").withValues(keyPair.getKeyName()));
+		describeInstanceFilters.add(new Filter("instance-type").withValues(type.toString()));
+
+		List<EC2Tag> tags = getTags();
+		if (tags != null && !tags.isEmpty()) {
+		    for(EC2Tag t : tags) {
+		        describeInstanceFilters.add(new Filter("tag:"+t.getName()).withValues(t.getValue()));
+		    }
+		}
+		describeInstanceFilters.add(new Filter("instance-state-name").withValues(instanceStates));
+		return describeInstanceFilters;
+    }
+
     /**
      * Update the tags stored in EC2 with the specified information
      */
@@ -156,6 +304,234 @@ public class Ec2AxisSlaveTemplate extends SlaveTemplate {
 		} }, 30);
 	}
     
+	public void configureAxisOptions(JSONObject templateForm) {
+		prewarmInstanceCap = templateForm.optInt("prewarmInstanceCap", 0);
+		prewarmLeadMinutes = templateForm.optInt("prewarmLeadMinutes", DEFAULT_PREWARM_LEAD_MINUTES);
+		stoppedPoolTarget = templateForm.optInt("stoppedPoolTarget", 0);
+		stoppedPoolMaxAgeMinutes = templateForm.optInt("stoppedPoolMaxAgeMinutes", 0);
+		preferNewInstances = templateForm.optBoolean("preferNewInstances", false);
+		announceBootCompletion = templateForm.optBoolean("announceBootCompletion", false);
+		spotChannelOverSsh = templateForm.optBoolean("spotChannelOverSsh", false);
+		workspaceCache = templateForm.optBoolean("workspaceCache", false);
+		instanceStoreRaid = templateForm.optBoolean("instanceStoreRaid", false);
+		workspaceCacheDevice = Util.fixEmptyAndTrim(templateForm.optString("workspaceCacheDevice"));
+		workspaceCacheSizeGb = templateForm.optInt("workspaceCacheSizeGb", DEFAULT_WORKSPACE_CACHE_SIZE_GB);
+		workspaceCacheSnapshotHours = templateForm.optInt("workspaceCacheSnapshotHours", DEFAULT_WORKSPACE_CACHE_SNAPSHOT_HOURS);
+		scaleIn = templateForm.optBoolean("scaleIn", false);
+		scaleInIdleBuffer = templateForm.optInt("scaleInIdleBuffer", 0);
+		scaleInDelayMinutes = templateForm.optInt("scaleInDelayMinutes", DEFAULT_SCALE_IN_DELAY_MINUTES);
+		scaleInBatchSize = templateForm.optInt("scaleInBatchSize", DEFAULT_SCALE_IN_BATCH_SIZE);
+		deadNodeMinutes = templateForm.optInt("deadNodeMinutes", DEFAULT_DEAD_NODE_MINUTES);
+		launchBatchWindowMillis = templateForm.optInt("launchBatchWindowMillis", 0);
+		reuseLaunchDefinition = templateForm.optBoolean("reuseLaunchDefinition", false);
+		minNodeHealthScore = templateForm.optInt("minNodeHealthScore", 0);
+		recycleUnhealthyNodes = templateForm.optBoolean("recycleUnhealthyNodes", false);
+	}
+
+	public int getPrewarmInstanceCap() {
+		return prewarmInstanceCap;
+	}
+
+	public int getPrewarmLeadMinutes() {
+		if (prewarmLeadMinutes <= 0)
+			return DEFAULT_PREWARM_LEAD_MINUTES;
+		return prewarmLeadMinutes;
+	}
+
+	/**
+	 * Stopped instances the pool is filled up to and capped at. 0 leaves the size of the pool alone, so
+	 * only the max age applies to the instances stopped by the ec2 plugin.
+	 */
+	public int getStoppedPoolTarget() {
+		return stoppedPoolTarget;
+	}
+
+	public int getStoppedPoolMaxAgeMinutes() {
+		return stoppedPoolMaxAgeMinutes;
+	}
+
+	/**
+	 * Whether launches try new instances first and only restart stopped ones when EC2 can't launch them
+	 */
+	public boolean isPreferNewInstances() {
+		return preferNewInstances;
+	}
+
+	public boolean isAnnounceBootCompletion() {
+		return announceBootCompletion;
+	}
+
+	public boolean isSpotChannelOverSsh() {
+		return spotChannelOverSsh;
+	}
+
+	/**
+	 * Whether instances get a volume made from the latest workspace cache snapshot of their label, mounted on remoteFS
+	 */
+	public boolean isWorkspaceCache() {
+		return workspaceCache;
+	}
+
+	/**
+	 * Whether the instance store volumes are assembled in a RAID0 array mounted on remoteFS
+	 */
+	public boolean isInstanceStoreRaid() {
+		return instanceStoreRaid;
+	}
+
+	/**
+	 * Whether the boot script mounts a volume on remoteFS
+	 */
+	public boolean isRemoteFsMounted() {
+		return workspaceCache || instanceStoreRaid;
+	}
+
+	/**
+	 * Whether connections must wait for the instance to announce the end of its boot script,
+	 * because the script mounts remoteFS
+	 */
+	public boolean isBootCompletionRequired() {
+		if (!isRemoteFsMounted())
+			return false;
+		return Jenkins.getInstance().getRootUrl() != null && new BootScript(userData).canAppend();
+	}
+
+	/**
+	 * Maps the instance store volumes to the first free devices from /dev/xvdb
+	 */
+	static List<BlockDeviceMapping> getInstanceStoreMappings(Set<String> occupiedDevices) {
+        final List<String> available = new ArrayList<String>(Arrays.asList(
+                "ephemeral0", "ephemeral1", "ephemeral2", "ephemeral3"
+        ));
+
+        final List<BlockDeviceMapping> newDeviceMapping = new ArrayList<BlockDeviceMapping>(4);
+        for (char suffix = 'b'; suffix <= 'z' && !available.isEmpty(); suffix++) {
+
+            final String deviceName = String.format("/dev/xvd%s", suffix);
+
+            if (occupiedDevices.contains(deviceName)) continue;
+
+            final BlockDeviceMapping newMapping = new BlockDeviceMapping()
+                    .withDeviceName(deviceName)
+                    .withVirtualName(available.get(0))
+            ;
+
+            newDeviceMapping.add(newMapping);
+            available.remove(0);
+        }
+        return newDeviceMapping;
+	}
+
+	public String getWorkspaceCacheDevice() {
+		if (workspaceCacheDevice == null)
+			return DEFAULT_WORKSPACE_CACHE_DEVICE;
+		return workspaceCacheDevice;
+	}
+
+	public int getWorkspaceCacheSizeGb() {
+		if (workspaceCacheSizeGb <= 0)
+			return DEFAULT_WORKSPACE_CACHE_SIZE_GB;
+		return workspaceCacheSizeGb;
+	}
+
+	public int getWorkspaceCacheSnapshotHours() {
+		if (workspaceCacheSnapshotHours <= 0)
+			return DEFAULT_WORKSPACE_CACHE_SNAPSHOT_HOURS;
+		return workspaceCacheSnapshotHours;
+	}
+
+	/**
+	 * Whether idle axis nodes beyond the forecast demand are retired before their idle timeout
+	 */
+	public boolean isScaleIn() {
+		return scaleIn;
+	}
+
+	/**
+	 * Idle nodes kept for each label even when no demand is forecast
+	 */
+	public int getScaleInIdleBuffer() {
+		return Math.max(0, scaleInIdleBuffer);
+	}
+
+	public int getScaleInDelayMinutes() {
+		if (scaleInDelayMinutes <= 0)
+			return DEFAULT_SCALE_IN_DELAY_MINUTES;
+		return scaleInDelayMinutes;
+	}
+
+	public int getScaleInBatchSize() {
+		if (scaleInBatchSize <= 0)
+			return DEFAULT_SCALE_IN_BATCH_SIZE;
+		return scaleInBatchSize;
+	}
+
+	public int getDeadNodeMinutes() {
+		if (deadNodeMinutes <= 0)
+			return DEFAULT_DEAD_NODE_MINUTES;
+		return deadNodeMinutes;
+	}
+
+	/**
+	 * Time provisioning requests of a label wait for others to be launched with them. 0 launches them right away
+	 */
+	public int getLaunchBatchWindowMillis() {
+		return launchBatchWindowMillis;
+	}
+
+	/**
+	 * Block device mappings of the AMI. They can't change, so each AMI is only described once.
+	 */
+	static List<BlockDeviceMapping> getAmiBlockDeviceMappings(AmazonEC2 ec2, String ami) {
+		List<BlockDeviceMapping> mappings = amiBlockDeviceMappings.get(ami);
+		if (mappings != null)
+			return mappings;
+		for (Image image : ec2.describeImages(new DescribeImagesRequest().withImageIds(ami)).getImages()) {
+			if (ami.equals(image.getImageId())) {
+				amiBlockDeviceMappings.put(ami, image.getBlockDeviceMappings());
+				return image.getBlockDeviceMappings();
+			}
+		}
+		throw new AmazonClientException("Unable to get AMI device mapping for " + ami);
+	}
+
+	/**
+	 * The user data of the template with the boot sections enabled for it
+	 */
+	public String getAxisUserData(EC2Logger logger) {
+		BootScript bootScript = new BootScript(userData);
+		if (workspaceCache)
+			bootScript.append(BootScript.mountVolume(getWorkspaceCacheDevice(), remoteFS, remoteAdmin));
+		if (instanceStoreRaid && workspaceCache)
+			logger.println("The workspace cache of " + description + " is mounted on the remote FS root. The instance store RAID is left out");
+		else if (instanceStoreRaid)
+			bootScript.append(BootScript.mountInstanceStoreRaid(remoteFS, remoteAdmin));
+		String jenkinsUrl = Jenkins.getInstance().getRootUrl();
+		if ((announceBootCompletion || isBootCompletionRequired()) && jenkinsUrl != null) {
+			EC2AxisCloud cloud = (EC2AxisCloud) getParent();
+			String mountPoint = isRemoteFsMounted() ? remoteFS : null;
+			bootScript.append(BootScript.bootCompleteCallback(jenkinsUrl, Util.rawEncode(cloud.name), cloud.getBootCallbackToken(), mountPoint));
+		}
+		if (bootScript.hasSections() && !bootScript.canAppend())
+			logger.println("User data of " + description + " is not a shell script. Boot sections won't be added to it");
+		return bootScript.toUserData();
+	}
+
+	public boolean hasStoppedPoolPolicy() {
+		return stoppedPoolTarget > 0 || stoppedPoolMaxAgeMinutes > 0;
+	}
+
+	/**
+	 * Whether the node is an axis slave allocated for one of the labels of this template
+	 */
+	public boolean isAxisNode(Node node) {
+		String labelString = node.getLabelString();
+		if (labelString == null || !labelString.contains("$axis"))
+			return false;
+		String ec2Label = StringUtils.substringBefore(labelString, "$axis");
+		return ((EC2AxisCloud) getParent()).getTemplateGivenLabel(new LabelAtom(ec2Label)) == this;
+	}
+
 	public void setInstanceLabel(String displayName) {
 		this.instanceLabel = displayName;
 	}
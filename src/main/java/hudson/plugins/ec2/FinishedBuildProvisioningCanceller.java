@@ -0,0 +1,101 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.matrix.MatrixBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.slaves.Cloud;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.ec2axis.Ec2SafeNodeTaskWorker;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+/**
+ * Cancels the provisioning still in flight for a matrix build once it is over, usually because it
+ * was aborted. Slaves not online yet are terminated, which also cancels their open spot requests,
+ * and their launch threads give up. Slaves of templates that stop on terminate get their spot request
+ * cancelled and their instance stopped instead. Slaves that came online stay as idle nodes for other builds.
+ */
+@Extension
+public class FinishedBuildProvisioningCanceller extends RunListener<MatrixBuild> {
+
+	@Override
+	public void onCompleted(MatrixBuild build, TaskListener listener) {
+		cancelFor(new EC2Logger(listener.getLogger()), build.getExternalizableId());
+	}
+
+	/**
+	 * Cancels the operations of the requester that are not done. Returns how many were cancelled.
+	 */
+	public static int cancelFor(EC2Logger logger, String requester) {
+		List<String> cancelledNodes = new ArrayList<String>();
+		int cancelled = 0;
+		for (ProvisioningOperation operation : ProvisioningOperation.startedFor(requester)) {
+			if (!operation.cancel())
+				continue;
+			cancelled++;
+			EC2AbstractSlave slave = operation.getSlave();
+			if (slave == null)
+				continue;
+			cancelledNodes.add(slave.getNodeName());
+			releaseSlave(logger, operation);
+		}
+		if (cancelled > 0)
+			logger.println("Cancelled the provisioning of " + cancelled + " nodes no longer needed by " + requester + ": " + StringUtils.join(cancelledNodes, ", "));
+		return cancelled;
+	}
+
+	/**
+	 * Gets rid of the slave of a cancelled operation, and of its instance
+	 */
+	static void releaseSlave(EC2Logger logger, ProvisioningOperation operation) {
+		EC2AbstractSlave slave = operation.getSlave();
+		boolean removed = Utils.isSlaveRemoved(slave);
+		Utils.finishSlaveAndQueuedItems(slave, "cancelled");
+		if (slave.stopOnTerminate && !removed)
+			stopCancelledSlave(logger, operation, slave);
+	}
+
+	/**
+	 * Terminating a slave that stops on terminate leaves its instance running and its spot request open,
+	 * so they are stopped and cancelled here before the node is removed. Instances that can't be stopped,
+	 * like the ones of one-time spot requests, are terminated.
+	 */
+	private static void stopCancelledSlave(EC2Logger logger, ProvisioningOperation operation, final EC2AbstractSlave slave) {
+		Cloud cloud = Jenkins.getInstance().getCloud(operation.getCloudName());
+		if (!(cloud instanceof EC2AxisCloud))
+			return;
+		AmazonEC2 ec2 = ((EC2AxisCloud) cloud).connectShared();
+		if (slave instanceof EC2SpotSlave)
+			ec2.cancelSpotInstanceRequests(new CancelSpotInstanceRequestsRequest(Arrays.asList(((EC2SpotSlave) slave).getSpotInstanceRequestId())));
+		String instanceId = slave instanceof EC2SpotSlave ? operation.getInstanceId() : slave.getInstanceId();
+		if (instanceId != null) {
+			try {
+				ec2.stopInstances(new StopInstancesRequest(Arrays.asList(instanceId)));
+			} catch (AmazonServiceException e) {
+				logger.println("Unable to stop " + instanceId + " of " + slave.getNodeName() + ", terminating it: " + e.getMessage());
+				ec2.terminateInstances(new TerminateInstancesRequest(Arrays.asList(instanceId)));
+				Ec2AxisMetrics.terminated(slave, "cancelled");
+			}
+		}
+		Ec2SafeNodeTaskWorker.invokeAndWait(new Runnable() {  @Override public void run() {
+			try {
+				Jenkins.getInstance().removeNode(slave);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}});
+	}
+}
@@ -0,0 +1,126 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Computer;
+import hudson.plugins.ec2.utils.Ec2AxisExecutor;
+import hudson.util.TimeUnit2;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Launches a replacement for each allocated node that is not online when a percentile of the
+ * recent boot times of its template is reached. The cells go to whichever of the two comes online
+ * first and the other one is terminated.
+ */
+public class HedgedLaunchSupervisor implements Runnable {
+	private static final long POLL_INTERVAL_MILLIS = TimeUnit2.SECONDS.toMillis(5);
+
+	private final EC2Logger logger;
+	private final EC2AxisCloud cloud;
+	private final String ec2Label;
+	private final List<String> cellLabels;
+	private final String requester;
+	private final int hedgePercentile;
+	private final long fallbackHedgeDelayMillis;
+	private final Map<EC2AbstractSlave, EC2AbstractSlave> replacements = new LinkedHashMap<EC2AbstractSlave, EC2AbstractSlave>();
+
+	/**
+	 * @param requester the build the nodes were allocated for. Replacements are launched for it too, so they are cancelled with its other nodes
+	 */
+	public static void start(EC2Logger logger, EC2AxisCloud cloud, String ec2Label, List<String> cellLabels, int hedgePercentile, int instanceBootTimeoutLimit, String requester) {
+		Ec2AxisExecutor.startDaemon("Hedged launch supervisor for " + ec2Label,
+				new HedgedLaunchSupervisor(logger, cloud, ec2Label, cellLabels, hedgePercentile, instanceBootTimeoutLimit, requester));
+	}
+
+	private HedgedLaunchSupervisor(EC2Logger logger, EC2AxisCloud cloud, String ec2Label, List<String> cellLabels, int hedgePercentile, int instanceBootTimeoutLimit, String requester) {
+		this.logger = logger;
+		this.cloud = cloud;
+		this.ec2Label = ec2Label;
+		this.cellLabels = new ArrayList<String>(cellLabels);
+		this.requester = requester;
+		this.hedgePercentile = hedgePercentile;
+		this.fallbackHedgeDelayMillis = TimeUnit2.SECONDS.toMillis(instanceBootTimeoutLimit);
+	}
+
+	@Override
+	public void run() {
+		long startedAt = System.currentTimeMillis();
+		List<EC2AbstractSlave> starting = new ArrayList<EC2AbstractSlave>();
+		for (String cellLabel : cellLabels) {
+			EC2AbstractSlave slave = CellLabels.nodeOf(cellLabel);
+			if (slave != null && !isOnline(slave) && !starting.contains(slave))
+				starting.add(slave);
+		}
+		if (starting.isEmpty())
+			return;
+		long hedgeDelay = getHedgeDelay(starting.get(0));
+		long giveUpAt = startedAt + EC2AxisCloud.getTimeout(starting.get(0));
+		logger.println("Nodes not online after " + hedgeDelay + " ms will get a replacement instance");
+
+		while (!starting.isEmpty() && System.currentTimeMillis() < giveUpAt) {
+			boolean hedgeDue = System.currentTimeMillis() - startedAt >= hedgeDelay;
+			for (EC2AbstractSlave slave : new ArrayList<EC2AbstractSlave>(starting)) {
+				if (resolve(slave))
+					starting.remove(slave);
+				else if (hedgeDue && !replacements.containsKey(slave))
+					launchReplacement(slave);
+			}
+			try {
+				Thread.sleep(POLL_INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private long getHedgeDelay(EC2AbstractSlave slave) {
+		long percentileBootTime = BootTimeStatistics.percentile(slave.getNodeDescription(), hedgePercentile);
+		if (percentileBootTime < 0)
+			return fallbackHedgeDelayMillis;
+		return Math.min(percentileBootTime, fallbackHedgeDelayMillis);
+	}
+
+	private void launchReplacement(EC2AbstractSlave slave) {
+		try {
+			List<EC2AbstractSlave> launched = cloud.provisionSlaves(logger, ec2Label, 1, requester);
+			logger.println(slave.getNodeName() + " is late. Launched " + launched.get(0).getNodeName() + " to replace it");
+			replacements.put(slave, launched.get(0));
+		} catch (Exception e) {
+			logger.printStackTrace(e);
+			replacements.put(slave, null);
+		}
+	}
+
+	/**
+	 * Returns true once the slave or its replacement won the race
+	 */
+	private boolean resolve(EC2AbstractSlave slave) {
+		EC2AbstractSlave replacement = replacements.get(slave);
+		if (Utils.isSlaveRemoved(slave))
+			return true;
+		if (isOnline(slave)) {
+			if (replacement != null) {
+				logger.println(slave.getNodeName() + " came up first. Terminating replacement " + replacement.getNodeName());
+				replacement.terminate();
+				Ec2AxisMetrics.terminated(replacement, "hedge_lost");
+			}
+			return true;
+		}
+		if (replacement != null && isOnline(replacement)) {
+			List<String> slaveCells = CellLabels.cellLabelsOfNode(slave.getNodeName(), cellLabels);
+			logger.println("Replacement " + replacement.getNodeName() + " came up first. It takes the cells " + slaveCells + " of " + slave.getNodeName());
+			CellLabels.moveCellsTo(replacement, slaveCells);
+			slave.terminate();
+			Ec2AxisMetrics.terminated(slave, "hedge_lost");
+			return true;
+		}
+		return false;
+	}
+
+	private boolean isOnline(EC2AbstractSlave slave) {
+		Computer computer = slave.toComputer();
+		return computer != null && computer.isOnline();
+	}
+}
@@ -0,0 +1,228 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import hudson.slaves.SlaveComputer;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.ec2axis.Ec2SafeNodeTaskWorker;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+
+/**
+ * Retires the idle axis nodes of each label beyond a buffer sized from the demand forecast.
+ * Scale-in starts only once the idle nodes stayed above the upper threshold for the template delay,
+ * and then goes down to the buffer in batches, so bursts don't cause launch and terminate churn.
+ * Axis nodes that stay offline are removed, so label scans only see live nodes.
+ */
+@Extension
+public class IdleScaleIn extends AsyncPeriodicWork {
+	private final Map<String, Hysteresis> hysteresisByLabel = new HashMap<String, Hysteresis>();
+	private final Map<String, Long> offlineSince = new HashMap<String, Long>();
+
+	/**
+	 * Scale-in state of one label
+	 */
+	static class Hysteresis {
+		private Long aboveThresholdSince;
+
+		/**
+		 * Idle nodes to retire now. The idle count must exceed the upper threshold for the whole delay,
+		 * then at most a batch is retired toward the target and the delay starts again.
+		 */
+		int nodesToRetire(int idle, int target, long delayMillis, int batchSize, long now) {
+			if (idle <= upperThreshold(target)) {
+				aboveThresholdSince = null;
+				return 0;
+			}
+			if (aboveThresholdSince == null) {
+				aboveThresholdSince = now;
+				return 0;
+			}
+			if (now - aboveThresholdSince < delayMillis)
+				return 0;
+			aboveThresholdSince = now;
+			return Math.min(idle - target, batchSize);
+		}
+
+		static int upperThreshold(int target) {
+			return target + Math.max(1, target / 4);
+		}
+	}
+
+	public IdleScaleIn() {
+		super("EC2 Axis idle scale-in");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit2.MINUTES.toMillis(1);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		EC2Logger logger = new EC2Logger(listener.getLogger());
+		Set<String> inFlightNodes = new HashSet<String>();
+		Set<String> provisioningLabels = new HashSet<String>();
+		for (ProvisioningOperation operation : ProvisioningOperation.getInFlight()) {
+			provisioningLabels.add(operation.getEc2Label());
+			if (operation.getSlave() != null)
+				inFlightNodes.add(operation.getSlave().getNodeName());
+		}
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			for (SlaveTemplate template : ((EC2AxisCloud) cloud).getTemplates()) {
+				Ec2AxisSlaveTemplate axisTemplate = (Ec2AxisSlaveTemplate) template;
+				if (!axisTemplate.isScaleIn())
+					continue;
+				for (Map.Entry<String, Set<Node>> label : ((EC2AxisCloud) cloud).getAxisNodesByLabel(template).entrySet()) {
+					String ec2Label = label.getKey();
+					try {
+						scaleInLabel(logger, axisTemplate, ec2Label, label.getValue(), inFlightNodes, provisioningLabels.contains(ec2Label));
+					} catch (Exception e) {
+						logger.printStackTrace(e);
+					}
+				}
+			}
+		}
+		Set<String> nodeNames = new HashSet<String>();
+		for (Node node : Jenkins.getInstance().getNodes())
+			nodeNames.add(node.getNodeName());
+		offlineSince.keySet().retainAll(nodeNames);
+	}
+
+	/**
+	 * Nodes are never retired while the label is provisioning, which would launch and terminate at the same time,
+	 * nor while an allocation hands them out or their cells are pending.
+	 */
+	private void scaleInLabel(EC2Logger logger, Ec2AxisSlaveTemplate template, String ec2Label, Set<Node> nodes, Set<String> inFlightNodes, boolean provisioning) {
+		List<EC2AbstractSlave> idleSlaves = new ArrayList<EC2AbstractSlave>();
+		List<EC2AbstractSlave> deadSlaves = new ArrayList<EC2AbstractSlave>();
+		long now = System.currentTimeMillis();
+		for (Node node : nodes) {
+			if (!(node instanceof EC2AbstractSlave) || !template.isAxisNode(node) || inFlightNodes.contains(node.getNodeName()))
+				continue;
+			Computer computer = node.toComputer();
+			if (computer != null && computer.getChannel() != null) {
+				offlineSince.remove(node.getNodeName());
+				if (computer.isOnline() && computer.isIdle())
+					idleSlaves.add((EC2AbstractSlave) node);
+				continue;
+			}
+			if (computer != null && computer.isConnecting())
+				continue;
+			if (isOfflineFor(node.getNodeName(), now, TimeUnit2.MINUTES.toMillis(template.getDeadNodeMinutes())))
+				deadSlaves.add((EC2AbstractSlave) node);
+		}
+		removeDeadSlaves(logger, template, deadSlaves);
+		if (provisioning)
+			return;
+
+		int target = Math.max(template.getScaleInIdleBuffer(),
+				DemandHistory.get().forecast(ec2Label, now, template.getPrewarmLeadMinutes()));
+		Hysteresis hysteresis = hysteresisFor(template.getParent().name + "/" + ec2Label);
+		int toRetire = hysteresis.nodesToRetire(idleSlaves.size(), target,
+				TimeUnit2.MINUTES.toMillis(template.getScaleInDelayMinutes()), template.getScaleInBatchSize(), now);
+		if (toRetire <= 0)
+			return;
+
+		Collections.sort(idleSlaves, new Comparator<EC2AbstractSlave>() {
+			@Override
+			public int compare(EC2AbstractSlave o1, EC2AbstractSlave o2) {
+				return Long.compare(o1.toComputer().getIdleStartMilliseconds(), o2.toComputer().getIdleStartMilliseconds());
+			}
+		});
+		List<EC2AbstractSlave> toRetireSlaves = EC2AxisCloud.withdrawFromAllocation(idleSlaves, toRetire);
+		if (toRetireSlaves.isEmpty())
+			return;
+		logger.println(idleSlaves.size() + " idle nodes for " + ec2Label + ", buffer of " + target + ". Retiring " + toRetireSlaves.size());
+		try {
+			AmazonEC2 ec2 = AmazonEC2Insistent.wrap(template.getParent().connect(), logger);
+			int missingInPool = template.hasStoppedPoolPolicy() ? countMissingInPool(ec2, template) : 0;
+			StoppedInstancePool.retire(logger, ec2, template, toRetireSlaves, missingInPool);
+		} catch (RuntimeException e) {
+			returnToAllocation(toRetireSlaves);
+			throw e;
+		}
+	}
+
+	private void returnToAllocation(List<EC2AbstractSlave> slaves) {
+		for (EC2AbstractSlave slave : slaves) {
+			Computer computer = slave.toComputer();
+			if (computer instanceof SlaveComputer)
+				((SlaveComputer) computer).setAcceptingTasks(true);
+		}
+	}
+
+	private int countMissingInPool(AmazonEC2 ec2, Ec2AxisSlaveTemplate template) {
+		try {
+			return Math.max(0, template.getStoppedPoolTarget() - StoppedInstancePool.describeStoppedInstances(ec2, template).size());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Offline nodes with a stopped instance are only removed from Jenkins, since a new node is created
+	 * when the instance is restarted. The instances of the others are terminated.
+	 */
+	private void removeDeadSlaves(EC2Logger logger, Ec2AxisSlaveTemplate template, List<EC2AbstractSlave> deadSlaves) {
+		final List<EC2AbstractSlave> toRemove = new ArrayList<EC2AbstractSlave>();
+		for (EC2AbstractSlave slave : deadSlaves) {
+			offlineSince.remove(slave.getNodeName());
+			if (slave.stopOnTerminate) {
+				toRemove.add(slave);
+				continue;
+			}
+			logger.println("Terminating " + slave.getNodeName() + ", offline for more than " + template.getDeadNodeMinutes() + " minutes");
+			slave.terminate();
+			Ec2AxisMetrics.terminated(template.getParent().name, template.description, "dead", 1);
+		}
+		if (toRemove.isEmpty())
+			return;
+		Ec2SafeNodeTaskWorker.invokeAndWait(new Runnable() {  @Override public void run() {
+			for (EC2AbstractSlave slave : toRemove) {
+				try {
+					Jenkins.getInstance().removeNode(slave);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}});
+	}
+
+	private boolean isOfflineFor(String nodeName, long now, long durationMillis) {
+		Long since = offlineSince.get(nodeName);
+		if (since == null) {
+			offlineSince.put(nodeName, now);
+			return false;
+		}
+		return now - since >= durationMillis;
+	}
+
+	private Hysteresis hysteresisFor(String key) {
+		Hysteresis hysteresis = hysteresisByLabel.get(key);
+		if (hysteresis == null) {
+			hysteresis = new Hysteresis();
+			hysteresisByLabel.put(key, hysteresis);
+		}
+		return hysteresis;
+	}
+}
@@ -0,0 +1,226 @@
+package hudson.plugins.ec2;
+
+import hudson.plugins.ec2.utils.Ec2AxisExecutor;
+import hudson.util.TimeUnit2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.InstanceStatus;
+import com.amazonaws.services.ec2.model.Reservation;
+
+/**
+ * Waits for instances to be running with a single describe call per poll for all the
+ * instances of a cloud, instead of each launcher trying to connect to instances that
+ * are still booting.
+ */
+public class InstanceReadinessPoller implements Runnable {
+	private static final long POLL_INTERVAL_MILLIS = TimeUnit2.SECONDS.toMillis(5);
+	private static final int INSTANCE_IDS_PER_REQUEST = 100;
+	private static final int PORT_PROBE_TIMEOUT_MILLIS = 2000;
+	private static final long PORT_PROBE_INTERVAL_MILLIS = TimeUnit2.SECONDS.toMillis(2);
+	private static final String IMPAIRED = "impaired";
+	private static final int MAX_BOOTED_INSTANCES_KEPT = 1000;
+
+	private final AmazonEC2 ec2;
+	private final EC2Logger logger;
+	private final Map<String, PendingInstance> pendingInstances = new HashMap<String, PendingInstance>();
+	private final Set<String> bootedInstances = new LinkedHashSet<String>();
+	private boolean polling = false;
+
+	private static class PendingInstance {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Instance runningInstance;
+		int waiters;
+	}
+
+	public InstanceReadinessPoller(AmazonEC2 ec2, EC2Logger logger) {
+		this.ec2 = ec2;
+		this.logger = logger;
+	}
+
+	/**
+	 * Blocks until the instance is running and passes its status checks.
+	 * Returns the running instance, or null if it failed or the timeout elapsed.
+	 */
+	public Instance awaitRunning(String instanceId, long timeoutMillis) throws InterruptedException {
+		PendingInstance pending = register(instanceId);
+		try {
+			pending.done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+			return pending.runningInstance;
+		} finally {
+			unregister(instanceId, pending);
+		}
+	}
+
+	/**
+	 * Waits for the instance to be running and for its port to accept connections, or for the instance
+	 * to announce it finished booting when that is required.
+	 * Returns the address to connect to, or null if the instance didn't become reachable in time.
+	 */
+	public String awaitReachable(String instanceId, boolean usePrivateAddress, int port, long timeoutMillis, boolean requireBootCompletion)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		Instance instance = awaitRunning(instanceId, timeoutMillis);
+		if (instance == null)
+			return null;
+		String address = usePrivateAddress || StringUtils.isBlank(instance.getPublicDnsName()) ? 
+				instance.getPrivateIpAddress() : instance.getPublicDnsName();
+		if (requireBootCompletion)
+			return awaitBooted(instanceId, deadline) ? address : null;
+		while (System.currentTimeMillis() < deadline) {
+			if (consumeBooted(instanceId) || Utils.isPortOpen(address, port, PORT_PROBE_TIMEOUT_MILLIS))
+				return address;
+			Thread.sleep(PORT_PROBE_INTERVAL_MILLIS);
+		}
+		return null;
+	}
+
+	public synchronized int getPendingCount() {
+		return pendingInstances.size();
+	}
+
+	/**
+	 * Called when an instance announces it finished booting. The instance is checked right away
+	 * and its connection starts without probing its port.
+	 */
+	public synchronized void markBooted(String instanceId) {
+		bootedInstances.add(instanceId);
+		if (bootedInstances.size() > MAX_BOOTED_INSTANCES_KEPT) {
+			Iterator<String> oldest = bootedInstances.iterator();
+			oldest.next();
+			oldest.remove();
+		}
+		notifyAll();
+	}
+
+	private synchronized boolean consumeBooted(String instanceId) {
+		return bootedInstances.remove(instanceId);
+	}
+
+	private synchronized boolean awaitBooted(String instanceId, long deadline) throws InterruptedException {
+		while (!bootedInstances.remove(instanceId)) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	private synchronized PendingInstance register(String instanceId) {
+		PendingInstance pending = pendingInstances.get(instanceId);
+		if (pending == null) {
+			pending = new PendingInstance();
+			pendingInstances.put(instanceId, pending);
+		}
+		pending.waiters++;
+		if (!polling) {
+			polling = true;
+			Ec2AxisExecutor.startDaemon("EC2 axis instance readiness poller", this);
+		}
+		return pending;
+	}
+
+	/**
+	 * The entry is kept while other launchers still wait for the same instance
+	 */
+	private synchronized void unregister(String instanceId, PendingInstance pending) {
+		if (--pending.waiters == 0 && pendingInstances.get(instanceId) == pending)
+			pendingInstances.remove(instanceId);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			List<String> instanceIds;
+			synchronized (this) {
+				if (pendingInstances.isEmpty()) {
+					polling = false;
+					return;
+				}
+				instanceIds = new ArrayList<String>(pendingInstances.keySet());
+			}
+			for (int start = 0; start < instanceIds.size(); start += INSTANCE_IDS_PER_REQUEST) {
+				List<String> batch = instanceIds.subList(start, Math.min(start + INSTANCE_IDS_PER_REQUEST, instanceIds.size()));
+				try {
+					pollBatch(batch);
+				} catch (Exception e) {
+					logger.printStackTrace(e);
+				}
+			}
+			synchronized (this) {
+				try {
+					wait(POLL_INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					polling = false;
+					return;
+				}
+			}
+		}
+	}
+
+	private void pollBatch(List<String> instanceIds) {
+		Map<String, Instance> running = new HashMap<String, Instance>();
+		DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(new Filter("instance-id").withValues(instanceIds));
+		for (Reservation reservation : ec2.describeInstances(request).getReservations()) {
+			for (Instance instance : reservation.getInstances()) {
+				String state = instance.getState().getName();
+				if (InstanceStateName.Running.toString().equals(state))
+					running.put(instance.getInstanceId(), instance);
+				else if (!InstanceStateName.Pending.toString().equals(state))
+					fail(instance.getInstanceId(), "is " + state);
+			}
+		}
+		if (running.isEmpty())
+			return;
+
+		try {
+			DescribeInstanceStatusRequest statusRequest = new DescribeInstanceStatusRequest()
+					.withInstanceIds(running.keySet())
+					.withIncludeAllInstances(true);
+			for (InstanceStatus status : ec2.describeInstanceStatus(statusRequest).getInstanceStatuses()) {
+				if (IMPAIRED.equals(status.getSystemStatus().getStatus()) || IMPAIRED.equals(status.getInstanceStatus().getStatus())) {
+					running.remove(status.getInstanceId());
+					fail(status.getInstanceId(), "failed its status checks");
+				}
+			}
+		} catch (AmazonServiceException e) {
+			logger.println("Could not check the status of " + running.keySet() + ": " + e.getMessage());
+		}
+		for (Instance instance : running.values())
+			succeed(instance);
+	}
+
+	private synchronized void succeed(Instance instance) {
+		PendingInstance pending = pendingInstances.get(instance.getInstanceId());
+		if (pending == null)
+			return;
+		pending.runningInstance = instance;
+		pending.done.countDown();
+	}
+
+	private synchronized void fail(String instanceId, String reason) {
+		PendingInstance pending = pendingInstances.get(instanceId);
+		if (pending == null)
+			return;
+		logger.println("Instance " + instanceId + " " + reason + ". It won't be connected");
+		pending.done.countDown();
+	}
+}
@@ -0,0 +1,55 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the provisioning requests of a template and label that arrive within a short window, so a burst
+ * of builds makes one launch call instead of one per build. The first request opens the batch and provisions
+ * every operation added to it once the window closes; each build still waits on its own operations.
+ */
+public class LaunchBatcher {
+	private static final Map<String, Batch> openBatches = new HashMap<String, Batch>();
+
+	private static class Batch {
+		final List<ProvisioningOperation> operations;
+		final BatchWindow window;
+
+		Batch(List<ProvisioningOperation> operations, BatchWindow window) {
+			this.operations = new ArrayList<ProvisioningOperation>(operations);
+			this.window = window;
+		}
+	}
+
+	/**
+	 * Adds the operations to the open batch of the key. The caller that opened the batch gets the operations of the
+	 * batch once the window is over and must provision them, even when interrupted, since the operations of the others
+	 * are in it. The others get null, their operations are provisioned with the batch.
+	 */
+	public static List<ProvisioningOperation> join(String key, List<ProvisioningOperation> operations, long windowMillis) {
+		return join(key, operations, new BatchWindow.Timed(windowMillis));
+	}
+
+	static List<ProvisioningOperation> join(String key, List<ProvisioningOperation> operations, BatchWindow window) {
+		synchronized (openBatches) {
+			Batch openBatch = openBatches.get(key);
+			if (openBatch != null) {
+				openBatch.operations.addAll(operations);
+				openBatch.window.joined();
+				return null;
+			}
+			openBatches.put(key, new Batch(operations, window));
+			window.joined();
+		}
+		try {
+			window.awaitClose();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (openBatches) {
+			return openBatches.remove(key).operations;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package hudson.plugins.ec2;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.GroupIdentifier;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.ec2.model.KeyPair;
+import com.amazonaws.services.ec2.model.LaunchSpecification;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.SpotPlacement;
+
+/**
+ * Everything the instances of a template configuration are launched with, resolved once: key pair, security
+ * group ids, encoded user data and block device mappings. On-demand requests and spot launch specifications
+ * are both made from it. Only the workspace cache volume is added per launch, since its snapshot changes.
+ */
+public class LaunchDefinition {
+	private final String configHash;
+	private final int version;
+	private final String ami;
+	private final InstanceType type;
+	private final String zone;
+	private final String subnetId;
+	private final Set<String> securityGroupSet;
+	private final List<String> ec2SecurityGroups;
+	private final KeyPair keyPair;
+	private final String encodedUserData;
+	private final List<BlockDeviceMapping> instanceStoreMappings;
+	private final Ec2AxisSlaveTemplate template;
+
+	private LaunchDefinition(String configHash, int version, Ec2AxisSlaveTemplate template, KeyPair keyPair, List<String> ec2SecurityGroups,
+			String userData, List<BlockDeviceMapping> instanceStoreMappings) {
+		this.configHash = configHash;
+		this.version = version;
+		this.template = template;
+		this.ami = template.ami;
+		this.type = template.type;
+		this.zone = template.zone;
+		this.subnetId = template.getSubnetId();
+		this.securityGroupSet = template.getSecurityGroupSet();
+		this.ec2SecurityGroups = ec2SecurityGroups;
+		this.keyPair = keyPair;
+		this.encodedUserData = StringUtils.isBlank(userData) ? null : Base64.encodeBase64String(userData.getBytes());
+		this.instanceStoreMappings = instanceStoreMappings;
+	}
+
+	/**
+	 * Resolves the definition of the current configuration of the template, making the EC2 calls it needs
+	 */
+	static LaunchDefinition resolve(AmazonEC2 ec2, Ec2AxisSlaveTemplate template, String userData, int version) throws IOException {
+		Set<String> occupiedDevices = new HashSet<String>();
+		for (BlockDeviceMapping mapping : Ec2AxisSlaveTemplate.getAmiBlockDeviceMappings(ec2, template.ami))
+			occupiedDevices.add(mapping.getDeviceName());
+		if (template.isWorkspaceCache())
+			occupiedDevices.add(template.getWorkspaceCacheDevice());
+		return new LaunchDefinition(configHashOf(template, userData), version, template, template.getKeyPair(ec2), template.getEc2SecurityGroups(ec2),
+				userData, Ec2AxisSlaveTemplate.getInstanceStoreMappings(occupiedDevices));
+	}
+
+	/**
+	 * Hash of every setting the definition is made from. The user data includes the boot sections, so it
+	 * also covers the options that add them and the Jenkins URL they call back.
+	 */
+	static String configHashOf(Ec2AxisSlaveTemplate template, String userData) {
+		List<String> settings = new ArrayList<String>();
+		settings.add(template.getParent().name);
+		settings.add(template.ami);
+		settings.add(String.valueOf(template.type));
+		settings.add(template.zone);
+		settings.add(template.getSubnetId());
+		settings.add(StringUtils.join(new TreeSet<String>(template.getSecurityGroupSet()), ","));
+		settings.add(userData);
+		settings.add(template.isWorkspaceCache() ? template.getWorkspaceCacheDevice() : "");
+		settings.add(String.valueOf(Jenkins.getInstance().getRootUrl()));
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (String setting : settings) {
+				digest.update(StringUtils.defaultString(setting).getBytes("UTF-8"));
+				digest.update((byte) 0);
+			}
+			return Hex.encodeHexString(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public RunInstancesRequest newRunInstancesRequest(AmazonEC2 ec2, int numberOfInstances, String ec2Label) {
+		RunInstancesRequest request = new RunInstancesRequest(ami, numberOfInstances, numberOfInstances);
+		request.withBlockDeviceMappings(getBlockDeviceMappings(ec2, ec2Label, true));
+		if (StringUtils.isNotBlank(zone))
+			request.setPlacement(new Placement(zone));
+		if (StringUtils.isNotBlank(subnetId)) {
+			request.setSubnetId(subnetId);
+			if (!securityGroupSet.isEmpty() && !ec2SecurityGroups.isEmpty())
+				request.setSecurityGroupIds(ec2SecurityGroups);
+		} else {
+			request.setSecurityGroups(securityGroupSet);
+		}
+		request.setUserData(StringUtils.defaultString(encodedUserData));
+		request.setKeyName(keyPair.getKeyName());
+		request.setInstanceType(type.toString());
+		return request;
+	}
+
+	/**
+	 * Spot instances only get the instance store volumes mapped when they are assembled in a RAID0 array
+	 */
+	public LaunchSpecification newLaunchSpecification(AmazonEC2 ec2, String ec2Label) {
+		LaunchSpecification specification = new LaunchSpecification();
+		specification.setImageId(ami);
+		specification.setInstanceType(type.toString());
+		if (StringUtils.isNotBlank(zone))
+			specification.setPlacement(new SpotPlacement(zone));
+		if (StringUtils.isNotBlank(subnetId)) {
+			specification.setSubnetId(subnetId);
+			/* If we have a subnet ID then we can only use VPC security groups */
+			if (!securityGroupSet.isEmpty()) {
+				List<GroupIdentifier> groups = new ArrayList<GroupIdentifier>();
+				for (String groupId : ec2SecurityGroups)
+					groups.add(new GroupIdentifier().withGroupId(groupId));
+				if (!groups.isEmpty())
+					specification.setAllSecurityGroups(groups);
+			}
+		} else if (!securityGroupSet.isEmpty()) {
+			specification.setSecurityGroups(securityGroupSet);
+		}
+		if (encodedUserData != null)
+			specification.setUserData(encodedUserData);
+		specification.setKeyName(keyPair.getKeyName());
+		List<BlockDeviceMapping> mappings = getBlockDeviceMappings(ec2, ec2Label, template.isInstanceStoreRaid());
+		if (!mappings.isEmpty())
+			specification.setBlockDeviceMappings(mappings);
+		return specification;
+	}
+
+	private List<BlockDeviceMapping> getBlockDeviceMappings(AmazonEC2 ec2, String ec2Label, boolean withInstanceStore) {
+		List<BlockDeviceMapping> mappings = new ArrayList<BlockDeviceMapping>();
+		if (template.isWorkspaceCache() && ec2Label != null)
+			mappings.add(WorkspaceCacheSnapshots.volumeMapping(ec2, template, ec2Label));
+		if (withInstanceStore)
+			mappings.addAll(instanceStoreMappings);
+		return mappings;
+	}
+
+	public String getConfigHash() {
+		return configHash;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public KeyPair getKeyPair() {
+		return keyPair;
+	}
+
+	public List<String> getEc2SecurityGroups() {
+		return ec2SecurityGroups;
+	}
+}
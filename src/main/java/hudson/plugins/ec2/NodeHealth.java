@@ -0,0 +1,158 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Health score of axis nodes, from 0 to 100, made of the outcome and duration of their recent cells and of
+ * their disk and load when idle. Failures only count beyond the failure rate of the whole label, so a broken
+ * commit doesn't mark every node as unhealthy, and durations are compared to the median of the same cell.
+ */
+public class NodeHealth {
+	public static final int MAX_SCORE = 100;
+	private static final int CELLS_PER_NODE = 10;
+	private static final int CELLS_PER_LABEL = 100;
+	private static final int DURATIONS_PER_CELL = 20;
+	private static final int MIN_DURATIONS = 3;
+	private static final int MIN_CELLS = 3;
+	private static final int MAX_NODES_KEPT = 1000;
+	private static final int MAX_CELLS_KEPT = 2000;
+
+	private static final Map<String, NodeRecord> nodes = new LinkedHashMap<String, NodeRecord>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, NodeRecord> eldest) {
+			return size() > MAX_NODES_KEPT;
+		}
+	};
+	private static final Map<String, LinkedList<Boolean>> failuresByLabel = new HashMap<String, LinkedList<Boolean>>();
+	private static final Map<String, LinkedList<Long>> durationsByCell = new LinkedHashMap<String, LinkedList<Long>>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, LinkedList<Long>> eldest) {
+			return size() > MAX_CELLS_KEPT;
+		}
+	};
+
+	static class NodeRecord {
+		final String ec2Label;
+		final LinkedList<Boolean> failures = new LinkedList<Boolean>();
+		final LinkedList<Double> durationRatios = new LinkedList<Double>();
+		double diskFreeRatio = 1;
+		double loadPerCpu;
+
+		NodeRecord(String ec2Label) {
+			this.ec2Label = ec2Label;
+		}
+	}
+
+	/**
+	 * Records a cell that ran on the node. Aborted cells say nothing about the node and aren't recorded.
+	 */
+	public static synchronized void recordCell(String nodeName, String ec2Label, String cell, boolean failed, long durationMillis) {
+		NodeRecord record = recordOf(nodeName, ec2Label);
+		addBounded(record.failures, failed, CELLS_PER_NODE);
+		LinkedList<Boolean> labelFailures = failuresByLabel.get(ec2Label);
+		if (labelFailures == null) {
+			labelFailures = new LinkedList<Boolean>();
+			failuresByLabel.put(ec2Label, labelFailures);
+		}
+		addBounded(labelFailures, failed, CELLS_PER_LABEL);
+
+		if (failed)
+			return;
+		LinkedList<Long> durations = durationsByCell.get(cell);
+		if (durations == null) {
+			durations = new LinkedList<Long>();
+			durationsByCell.put(cell, durations);
+		}
+		if (durations.size() >= MIN_DURATIONS) {
+			long median = median(durations);
+			if (median > 0)
+				addBounded(record.durationRatios, (double) durationMillis / median, CELLS_PER_NODE);
+		}
+		addBounded(durations, durationMillis, DURATIONS_PER_CELL);
+	}
+
+	/**
+	 * Records the share of free space of the remote FS and the load average per CPU, sampled while the node is idle
+	 */
+	public static synchronized void recordVitals(String nodeName, String ec2Label, double diskFreeRatio, double loadPerCpu) {
+		NodeRecord record = recordOf(nodeName, ec2Label);
+		record.diskFreeRatio = diskFreeRatio;
+		record.loadPerCpu = loadPerCpu;
+	}
+
+	public static synchronized int scoreOf(String nodeName) {
+		NodeRecord record = nodes.get(nodeName);
+		if (record == null)
+			return MAX_SCORE;
+		return score(failureRate(record.failures), failureRate(failuresByLabel.get(record.ec2Label)), record.failures.size(),
+				medianRatio(record.durationRatios), record.diskFreeRatio, record.loadPerCpu);
+	}
+
+	public static synchronized void forget(String nodeName) {
+		nodes.remove(nodeName);
+	}
+
+	/**
+	 * Combines the penalties of each signal. Failures above the label rate weigh the most, once the node ran a few cells.
+	 */
+	static int score(double nodeFailureRate, double labelFailureRate, int cellsOnNode, double durationRatio, double diskFreeRatio, double loadPerCpu) {
+		double score = MAX_SCORE;
+		if (cellsOnNode >= MIN_CELLS)
+			score -= Math.max(0, nodeFailureRate - labelFailureRate) * 60;
+		if (durationRatio > 1.2)
+			score -= Math.min(30, (durationRatio - 1) * 30);
+		if (diskFreeRatio < 0.1)
+			score -= 40;
+		else if (diskFreeRatio < 0.2)
+			score -= 15;
+		if (loadPerCpu > 1.5)
+			score -= 20;
+		return (int) Math.max(0, Math.round(score));
+	}
+
+	private static NodeRecord recordOf(String nodeName, String ec2Label) {
+		NodeRecord record = nodes.get(nodeName);
+		if (record == null || !record.ec2Label.equals(ec2Label)) {
+			record = new NodeRecord(ec2Label);
+			nodes.put(nodeName, record);
+		}
+		return record;
+	}
+
+	private static double failureRate(List<Boolean> failures) {
+		if (failures == null || failures.isEmpty())
+			return 0;
+		int failed = 0;
+		for (Boolean failure : failures) {
+			if (failure)
+				failed++;
+		}
+		return (double) failed / failures.size();
+	}
+
+	private static double medianRatio(List<Double> ratios) {
+		if (ratios.isEmpty())
+			return 1;
+		List<Double> sorted = new ArrayList<Double>(ratios);
+		Collections.sort(sorted);
+		return sorted.get(sorted.size() / 2);
+	}
+
+	private static long median(List<Long> durations) {
+		List<Long> sorted = new ArrayList<Long>(durations);
+		Collections.sort(sorted);
+		return sorted.get(sorted.size() / 2);
+	}
+
+	private static <T> void addBounded(LinkedList<T> list, T value, int maxSize) {
+		list.add(value);
+		if (list.size() > maxSize)
+			list.removeFirst();
+	}
+}
@@ -0,0 +1,154 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.matrix.Axis;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixRun;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.Cloud;
+import hudson.util.TimeUnit2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.ec2axis.EC2Axis;
+
+/**
+ * Samples the disk and load of the idle axis nodes of the templates that score node health, and terminates
+ * the idle ones scoring below the template minimum when the template recycles them. The outcome of each
+ * cell is recorded by {@link CellOutcomes}.
+ */
+@Extension
+public class NodeHealthMonitor extends AsyncPeriodicWork {
+
+	public NodeHealthMonitor() {
+		super("EC2 Axis node health monitor");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit2.MINUTES.toMillis(5);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		EC2Logger logger = new EC2Logger(listener.getLogger());
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			for (SlaveTemplate template : ((EC2AxisCloud) cloud).getTemplates()) {
+				Ec2AxisSlaveTemplate axisTemplate = (Ec2AxisSlaveTemplate) template;
+				if (axisTemplate.getMinNodeHealthScore() <= 0)
+					continue;
+				for (Map.Entry<String, Set<Node>> label : ((EC2AxisCloud) cloud).getAxisNodesByLabel(template).entrySet()) {
+					for (Node node : label.getValue()) {
+						try {
+							checkNode(logger, axisTemplate, label.getKey(), node);
+						} catch (Exception e) {
+							logger.printStackTrace(e);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void checkNode(EC2Logger logger, Ec2AxisSlaveTemplate template, String ec2Label, Node node) throws IOException, InterruptedException {
+		Computer computer = node.toComputer();
+		if (!(node instanceof EC2AbstractSlave) || computer == null || !computer.isOnline() || !computer.isIdle()
+				|| CellLabels.hasPendingCells(node.getNodeName()))
+			return;
+		VirtualChannel channel = computer.getChannel();
+		if (channel == null)
+			return;
+		double[] vitals = channel.call(new Vitals(((EC2AbstractSlave) node).getRemoteFS()));
+		NodeHealth.recordVitals(node.getNodeName(), ec2Label, vitals[0], vitals[1]);
+
+		if (!template.isUnhealthy(node))
+			return;
+		int score = NodeHealth.scoreOf(node.getNodeName());
+		if (!template.isRecycleUnhealthyNodes()) {
+			logger.println(node.getNodeName() + " has a health score of " + score + " and won't get cells");
+			return;
+		}
+		if (EC2AxisCloud.withdrawFromAllocation(Arrays.asList((EC2AbstractSlave) node), 1).isEmpty())
+			return;
+		logger.println("Terminating " + node.getNodeName() + ", its health score is " + score);
+		((EC2AbstractSlave) node).terminate();
+		NodeHealth.forget(node.getNodeName());
+		Ec2AxisMetrics.terminated(template.getParent().name, template.description, "unhealthy", 1);
+	}
+
+	/**
+	 * Share of free space of the remote FS and load average per CPU of the slave
+	 */
+	private static class Vitals implements Callable<double[], IOException> {
+		private static final long serialVersionUID = 1L;
+		private final String remoteFS;
+
+		Vitals(String remoteFS) {
+			this.remoteFS = remoteFS;
+		}
+
+		@Override
+		public double[] call() throws IOException {
+			File root = new File(remoteFS);
+			double diskFreeRatio = root.getTotalSpace() > 0 ? (double) root.getUsableSpace() / root.getTotalSpace() : 1;
+			OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+			double loadPerCpu = Math.max(0, os.getSystemLoadAverage()) / Math.max(1, os.getAvailableProcessors());
+			return new double[] { diskFreeRatio, loadPerCpu };
+		}
+	}
+
+	/**
+	 * Records the outcome and duration of each cell that ran on an axis node
+	 */
+	@Extension
+	public static class CellOutcomes extends RunListener<MatrixRun> {
+
+		@Override
+		public void onCompleted(MatrixRun run, TaskListener listener) {
+			Node node = run.getBuiltOn();
+			Result result = run.getResult();
+			if (!(node instanceof EC2AbstractSlave) || result == null || result == Result.ABORTED)
+				return;
+			String labelString = node.getLabelString();
+			if (labelString == null || !labelString.contains("$axis"))
+				return;
+			long duration = run.getDuration() > 0 ? run.getDuration() : System.currentTimeMillis() - run.getStartTimeInMillis();
+			String ec2Label = StringUtils.substringBefore(labelString, "$axis");
+			NodeHealth.recordCell(node.getNodeName(), ec2Label, cellKey(run, ec2Label), result.isWorseThan(Result.UNSTABLE), duration);
+		}
+
+		/**
+		 * The same cell on any node: the EC2Axis values name the node the cell ran on, so only the
+		 * values of the other axes are kept, with the template label in their place.
+		 */
+		static String cellKey(MatrixRun run, String ec2Label) {
+			MatrixConfiguration configuration = run.getParent();
+			List<String> values = new ArrayList<String>();
+			for (Axis axis : configuration.getParent().getAxes()) {
+				if (!(axis instanceof EC2Axis))
+					values.add(axis.getName() + "=" + configuration.getCombination().get(axis.getName()));
+			}
+			return configuration.getParent().getFullName() + "/" + ec2Label + "/" + StringUtils.join(values, ",");
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package hudson.plugins.ec2;
 
+import hudson.plugins.ec2.utils.Ec2AxisExecutor;
+import hudson.plugins.ec2.utils.ExponentialBackoff;
 import hudson.util.TimeUnit2;
 
 import java.util.List;
@@ -8,43 +10,99 @@ import java.util.concurrent.Future;
 import org.apache.commons.lang.time.StopWatch;
 
 final class OnDemandSlaveLauncher implements Runnable {
+	private static final long INITIAL_RETRY_INTERVAL_MILLIS = TimeUnit2.SECONDS.toMillis(2);
+	private static final long MAX_RETRY_INTERVAL_MILLIS = TimeUnit2.SECONDS.toMillis(60);
 
 	private final EC2Logger logger;
 	private EC2AbstractSlave slave;
+	private final ProvisioningOperation operation;
 	private Exception connectionFailed;
+	private final InstanceReadinessPoller readinessPoller;
+	private final int sshPort;
+	private final boolean usePrivateDnsName;
+	private final boolean requireBootCompletion;
 
-	public OnDemandSlaveLauncher(EC2AbstractSlave slave, EC2Logger logger) {
-		this.slave = slave;
+	public OnDemandSlaveLauncher(ProvisioningOperation operation, Ec2AxisSlaveTemplate slaveTemplate, EC2Logger logger) {
+		this.operation = operation;
+		this.slave = operation.getSlave();
 		this.logger = logger;
+		this.readinessPoller = ((EC2AxisCloud) slaveTemplate.getParent()).getReadinessPoller();
+		this.sshPort = slaveTemplate.getSshPort();
+		this.usePrivateDnsName = slaveTemplate.usePrivateDnsName;
+		this.requireBootCompletion = slaveTemplate.isBootCompletionRequired() && !operation.isRestarted();
 	}
 
 	@Override
 	public void run() {
+		try {
+			connect();
+		} finally {
+			// no-op when the slave came online or the operation already ended
+			operation.failed(new RuntimeException("Launch of " + slave.getDisplayName() + " ended before it came online"));
+		}
+	}
+
+	private void connect() {
 		long timeout = EC2AxisCloud.getTimeout(slave);
-		int retryIntervalSecs = 5;
-		long retryIntervalMillis = TimeUnit2.SECONDS.toMillis(retryIntervalSecs);
 		long maxWait = System.currentTimeMillis() + timeout;
 		StopWatch stopwatch = new StopWatch();
 		stopwatch.start();
 		
 		Future<?> connectionPromise;
 		String displayName = slave.getDisplayName();
+		if (!waitUntilReachable(timeout)) {
+			Utils.finishSlaveAndQueuedItems(slave);
+			String message = "Instance of " + displayName + " did not become reachable after " + timeout + " ms";
+			logger.println(message);
+			operation.failed(new RuntimeException(message));
+			return;
+		}
+		operation.reached(ProvisioningOperation.Stage.RUNNING);
+		ExponentialBackoff backoff = new ExponentialBackoff(INITIAL_RETRY_INTERVAL_MILLIS, MAX_RETRY_INTERVAL_MILLIS);
 		do {
+			if (Utils.isSlaveRemoved(slave)) {
+				logger.println(displayName + " was removed while connecting. Giving up");
+				operation.failed(new RuntimeException(displayName + " was removed while connecting"));
+				return;
+			}
+			if (operation.isCancelled()) {
+				logger.println("Provisioning of " + displayName + " was cancelled. Giving up");
+				Utils.finishSlaveAndQueuedItems(slave);
+				return;
+			}
 			connectionPromise = slave.toComputer().connect(false);
-			if (waitForConnection(connectionPromise))
+			if (waitForConnection(connectionPromise)) {
+				operation.reached(ProvisioningOperation.Stage.CONNECTED);
+				operation.reached(ProvisioningOperation.Stage.ONLINE);
+				BootTimeStatistics.record(slave.getNodeDescription(), stopwatch.getTime());
 				return;
+			}
 			try {
-				logger.println("Connection to " + displayName + " failed. Will retry in "+retryIntervalSecs+" seconds");
+				long retryIntervalMillis = backoff.nextDelay();
+				logger.println("Connection to " + displayName + " failed. Will retry in "+retryIntervalMillis+" ms");
 				Thread.sleep(retryIntervalMillis);
 			} catch (InterruptedException e) {
 				logger.printStackTrace(e);
+				operation.failed(e);
 				return;
 			}
 		}
 		while(System.currentTimeMillis() < maxWait);
 		Utils.finishSlaveAndQueuedItems(slave);
 		
-		logger.printStackTrace(new RuntimeException("Slave"+displayName+" failed to come up after " + timeout + " ms",connectionFailed));
+		RuntimeException failure = new RuntimeException("Slave"+displayName+" failed to come up after " + timeout + " ms",connectionFailed);
+		operation.failed(failure);
+		logger.printStackTrace(failure);
+	}
+
+	private boolean waitUntilReachable(long timeout) {
+		logger.println("Waiting for the instance of " + slave.getDisplayName() + " to be running and reachable");
+		try {
+			return readinessPoller.awaitReachable(slave.getInstanceId(), usePrivateDnsName, sshPort, timeout, requireBootCompletion) != null;
+		} catch (InterruptedException e) {
+			logger.printStackTrace(e);
+			return false;
+		}
 	}
 
 	private boolean waitForConnection(Future<?> connectionPromise) {
@@ -66,9 +124,18 @@ final class OnDemandSlaveLauncher implements Runnable {
 		}
 	}
 
-	public static void launchSlaves(List<EC2AbstractSlave> allocatedSlaves, EC2Logger logger2) {
-		for (EC2AbstractSlave slaveToLaunch : allocatedSlaves) {
-			new Thread(new OnDemandSlaveLauncher(slaveToLaunch, logger2)).start();
+	/**
+	 * Slaves registered for operations cancelled in the meantime are released instead of launched
+	 */
+	public static void launchSlaves(List<ProvisioningOperation> operations, Ec2AxisSlaveTemplate slaveTemplate, EC2Logger logger2) {
+		for (ProvisioningOperation cancelled : ProvisioningOperation.cancelledWithSlave(operations)) {
+			logger2.println("Provisioning of " + cancelled.getSlave().getNodeName() + " was cancelled while it registered. Releasing it");
+			FinishedBuildProvisioningCanceller.releaseSlave(logger2, cancelled);
+		}
+		for (ProvisioningOperation operation : operations) {
+			if (operation.getSlave() == null || operation.isDone())
+				continue;
+			Ec2AxisExecutor.execute("Connecting " + operation.getSlave().getNodeName(), new OnDemandSlaveLauncher(operation, slaveTemplate, logger2));
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import hudson.plugins.ec2.utils.DescribePages;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.KeyPair;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+/**
+ * Finds running instances of the axis templates that have no node in Jenkins, and axis nodes
+ * whose instance no longer exists. This happens when provisioning threads die or when the
+ * controller restarts in the middle of a provisioning, and the leaked capacity makes later
+ * launches hit the instance caps. Only instances carrying the owner tag of the cloud on this
+ * controller are considered.
+ */
+@Extension
+public class OrphanInstanceReconciler extends AsyncPeriodicWork {
+	private static final long GRACE_PERIOD_MILLIS = TimeUnit2.MINUTES.toMillis(15);
+
+	public OrphanInstanceReconciler() {
+		super("EC2 Axis orphan instance reconciler");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit2.MINUTES.toMillis(10);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		EC2Logger logger = new EC2Logger(listener.getLogger());
+		NodeIndex nodeIndex = new NodeIndex();
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			for (SlaveTemplate template : ((EC2AxisCloud) cloud).getTemplates()) {
+				try {
+					reconcile(logger, (EC2AxisCloud) cloud, (Ec2AxisSlaveTemplate) template, nodeIndex);
+				} catch (Exception e) {
+					logger.printStackTrace(e);
+				}
+			}
+		}
+	}
+
+	private void reconcile(EC2Logger logger, EC2AxisCloud cloud, Ec2AxisSlaveTemplate template, NodeIndex nodeIndex) throws IOException {
+		AmazonEC2 ec2 = AmazonEC2Insistent.wrap(cloud.connect(), logger);
+		KeyPair keyPair = template.getKeyPair(ec2);
+		List<Filter> filters = template.getInstanceFilters(keyPair, template.getEc2SecurityGroups(ec2),
+				InstanceStateName.Pending.toString(), InstanceStateName.Running.toString());
+		Tag ownerTag = cloud.getOwnerTag();
+		filters.add(new Filter("tag:" + ownerTag.getKey()).withValues(ownerTag.getValue()));
+
+		List<String> strayInstanceIds = new ArrayList<String>();
+		List<String> straySpotRequestIds = new ArrayList<String>();
+		for (Instance instance : DescribePages.instances(ec2, filters, DescribePages.DEFAULT_PAGE_SIZE)) {
+			if (nodeIndex.hasNodeFor(instance) || isWithinGracePeriod(instance))
+				continue;
+			if (instance.getSpotInstanceRequestId() == null) {
+				nodeIndex.add(cloud.adoptOrphanInstance(logger, template, instance));
+			} else {
+				strayInstanceIds.add(instance.getInstanceId());
+				straySpotRequestIds.add(instance.getSpotInstanceRequestId());
+			}
+		}
+
+		if (!strayInstanceIds.isEmpty()) {
+			logger.println("Terminating spot instances without a node: " + StringUtils.join(strayInstanceIds, ", "));
+			ec2.cancelSpotInstanceRequests(new CancelSpotInstanceRequestsRequest(straySpotRequestIds));
+			ec2.terminateInstances(new TerminateInstancesRequest(strayInstanceIds));
+			Ec2AxisMetrics.terminated(cloud.name, template.description, "orphan", strayInstanceIds.size());
+		}
+
+		removeNodesWithoutInstance(logger, ec2, template, nodeIndex);
+	}
+
+	private void removeNodesWithoutInstance(EC2Logger logger, AmazonEC2 ec2, Ec2AxisSlaveTemplate template, NodeIndex nodeIndex) {
+		List<String> candidateInstanceIds = new ArrayList<String>();
+		for (EC2OndemandSlave slave : nodeIndex.getOfflineOndemandSlaves()) {
+			if (template.isAxisNode(slave))
+				candidateInstanceIds.add(slave.getInstanceId());
+		}
+
+		Set<String> existingInstanceIds = new HashSet<String>();
+		for (Instance instance : DescribePages.instancesById(ec2, candidateInstanceIds)) {
+			String state = instance.getState().getName();
+			if (!InstanceStateName.Terminated.toString().equals(state) && !InstanceStateName.ShuttingDown.toString().equals(state))
+				existingInstanceIds.add(instance.getInstanceId());
+		}
+
+		List<String> goneInstanceIds = new ArrayList<String>(candidateInstanceIds);
+		goneInstanceIds.removeAll(existingInstanceIds);
+		if (goneInstanceIds.isEmpty())
+			return;
+		logger.println("Removing axis nodes whose instance is gone: " + StringUtils.join(goneInstanceIds, ", "));
+		Utils.removeNodesOfInstances(goneInstanceIds);
+	}
+
+	private boolean isWithinGracePeriod(Instance instance) {
+		return instance.getLaunchTime().getTime() + GRACE_PERIOD_MILLIS > System.currentTimeMillis();
+	}
+
+	/**
+	 * Ec2 nodes indexed by instance id and by spot request id. Spot slaves are indexed only by their
+	 * request id, because resolving the instance id of a spot slave costs one API call per node.
+	 */
+	private static class NodeIndex {
+		private final Map<String, EC2AbstractSlave> byInstanceId = new HashMap<String, EC2AbstractSlave>();
+		private final Map<String, EC2AbstractSlave> bySpotRequestId = new HashMap<String, EC2AbstractSlave>();
+		private final List<EC2OndemandSlave> offlineOndemandSlaves = new ArrayList<EC2OndemandSlave>();
+
+		NodeIndex() {
+			for (Node node : Jenkins.getInstance().getNodes()) {
+				add(node);
+				if (node instanceof EC2OndemandSlave) {
+					Computer computer = node.toComputer();
+					if (computer != null && computer.isOffline() && !computer.isConnecting())
+						offlineOndemandSlaves.add((EC2OndemandSlave) node);
+				}
+			}
+		}
+
+		/**
+		 * Adopted nodes are added as they are created, so an instance matched by the filters
+		 * of several templates is adopted only once
+		 */
+		void add(Node node) {
+			if (node instanceof EC2SpotSlave) {
+				EC2SpotSlave spotSlave = (EC2SpotSlave) node;
+				bySpotRequestId.put(spotSlave.getSpotInstanceRequestId(), spotSlave);
+			}
+			if (node instanceof EC2OndemandSlave) {
+				EC2OndemandSlave ondemandSlave = (EC2OndemandSlave) node;
+				byInstanceId.put(ondemandSlave.getInstanceId(), ondemandSlave);
+			}
+		}
+
+		boolean hasNodeFor(Instance instance) {
+			if (byInstanceId.containsKey(instance.getInstanceId()))
+				return true;
+			String spotRequestId = instance.getSpotInstanceRequestId();
+			return spotRequestId != null && bySpotRequestId.containsKey(spotRequestId);
+		}
+
+		List<EC2OndemandSlave> getOfflineOndemandSlaves() {
+			return offlineOndemandSlaves;
+		}
+	}
+}
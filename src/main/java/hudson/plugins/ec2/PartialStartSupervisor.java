@@ -0,0 +1,92 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Computer;
+import hudson.plugins.ec2.utils.Ec2AxisExecutor;
+import hudson.util.TimeUnit2;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Once the quorum of allocated nodes is online and the quorum deadline has passed, moves the cells
+ * of the nodes that are still starting to the online ones and terminates the stragglers, so the
+ * build doesn't wait for the slowest instances to boot.
+ */
+public class PartialStartSupervisor implements Runnable {
+	private static final long POLL_INTERVAL_MILLIS = TimeUnit2.SECONDS.toMillis(5);
+
+	private final EC2Logger logger;
+	private final List<String> cellLabels;
+	private final int quorumPercent;
+	private final long quorumTimeoutMillis;
+
+	public static void start(EC2Logger logger, List<String> cellLabels, int quorumPercent, int quorumTimeoutSeconds) {
+		Ec2AxisExecutor.startDaemon("Partial start supervisor", new PartialStartSupervisor(logger, cellLabels, quorumPercent, quorumTimeoutSeconds));
+	}
+
+	private PartialStartSupervisor(EC2Logger logger, List<String> cellLabels, int quorumPercent, int quorumTimeoutSeconds) {
+		this.logger = logger;
+		this.cellLabels = new ArrayList<String>(cellLabels);
+		this.quorumPercent = quorumPercent;
+		this.quorumTimeoutMillis = TimeUnit2.SECONDS.toMillis(quorumTimeoutSeconds);
+	}
+
+	@Override
+	public void run() {
+		long startedAt = System.currentTimeMillis();
+		long deadline = startedAt + quorumTimeoutMillis;
+		Map<String, EC2AbstractSlave> allocatedSlaves = new LinkedHashMap<String, EC2AbstractSlave>();
+		for (String cellLabel : cellLabels) {
+			EC2AbstractSlave slave = CellLabels.nodeOf(cellLabel);
+			if (slave != null)
+				allocatedSlaves.put(slave.getNodeName(), slave);
+		}
+		if (allocatedSlaves.isEmpty())
+			return;
+		int quorum = (int) Math.ceil(allocatedSlaves.size() * quorumPercent / 100.0);
+		long giveUpAt = startedAt + EC2AxisCloud.getTimeout(allocatedSlaves.values().iterator().next());
+
+		while (System.currentTimeMillis() < giveUpAt) {
+			List<EC2AbstractSlave> online = new ArrayList<EC2AbstractSlave>();
+			List<EC2AbstractSlave> starting = new ArrayList<EC2AbstractSlave>();
+			for (EC2AbstractSlave slave : allocatedSlaves.values()) {
+				if (Utils.isSlaveRemoved(slave))
+					continue;
+				Computer computer = slave.toComputer();
+				if (computer != null && computer.isOnline())
+					online.add(slave);
+				else
+					starting.add(slave);
+			}
+			if (starting.isEmpty())
+				return;
+			if (System.currentTimeMillis() >= deadline && online.size() >= quorum && !online.isEmpty()) {
+				releaseStragglers(online, starting);
+				return;
+			}
+			try {
+				Thread.sleep(POLL_INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void releaseStragglers(List<EC2AbstractSlave> online, List<EC2AbstractSlave> starting) {
+		logger.println(online.size() + " of " + (online.size() + starting.size()) + " nodes online after the quorum deadline. "
+				+ "Moving the cells of the " + starting.size() + " nodes still starting to online nodes");
+		int next = 0;
+		for (EC2AbstractSlave straggler : starting) {
+			EC2AbstractSlave target = online.get(next++ % online.size());
+			List<String> stragglerCells = CellLabels.cellLabelsOfNode(straggler.getNodeName(), cellLabels);
+			if (stragglerCells.isEmpty())
+				stragglerCells.add(straggler.getNodeName());
+			logger.println("Cells " + stragglerCells + " will run on " + target.getNodeName());
+			CellLabels.moveCellsTo(target, stragglerCells);
+			straggler.terminate();
+			Ec2AxisMetrics.terminated(straggler, "quorum_straggler");
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Launches axis slaves ahead of the demand forecast by {@link DemandHistory}, so that builds
+ * starting on a predictable schedule find warm nodes instead of waiting for instances to boot.
+ */
+@Extension
+public class PredictivePrewarmWork extends AsyncPeriodicWork {
+
+	public PredictivePrewarmWork() {
+		super("EC2 Axis predictive pre-provisioning");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit2.MINUTES.toMillis(5);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		EC2Logger logger = new EC2Logger(listener.getLogger());
+		DemandHistory history = DemandHistory.get();
+		history.collectWastedPrewarmedSlaves();
+
+		for (String ec2Label : history.getLabels()) {
+			logger.println(history.getReport(ec2Label));
+			try {
+				prewarmLabel(logger, history, ec2Label);
+			} catch (Exception e) {
+				logger.printStackTrace(e);
+			}
+		}
+		history.saveIfChanged();
+	}
+
+	private void prewarmLabel(EC2Logger logger, DemandHistory history, String ec2Label) {
+		EC2AxisCloud cloud = EC2AxisCloud.getCloudToUse(ec2Label);
+		if (cloud == null)
+			return;
+		Ec2AxisSlaveTemplate template = cloud.getTemplate(new LabelAtom(ec2Label));
+		if (template == null || template.getPrewarmInstanceCap() <= 0)
+			return;
+
+		int expected = history.forecast(ec2Label, System.currentTimeMillis(), template.getPrewarmLeadMinutes());
+		int available = cloud.countOnlineAvailableSlaves(ec2Label);
+		int unusedPrewarmed = history.countUnusedPrewarmedSlaves(ec2Label);
+		int budget = template.getPrewarmInstanceCap() - unusedPrewarmed;
+		int toLaunch = Math.min(expected - available, budget);
+		if (toLaunch <= 0)
+			return;
+
+		logger.println("Expecting " + expected + " slaves for " + ec2Label + ", " + available + " available. Pre-warming " + toLaunch);
+		List<EC2AbstractSlave> prewarmed = cloud.prewarmSlaves(logger, ec2Label, toLaunch);
+		history.recordPrewarmedSlaves(ec2Label, prewarmed);
+	}
+}
@@ -0,0 +1,297 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Provisioning of one instance, from the EC2 request until its slave is online. Each stage has a
+ * future that completes when the instance reaches it, so callers can wait for exactly the stage they
+ * need, or attach listeners to it, instead of blocking until the whole launch is done.
+ */
+public class ProvisioningOperation {
+	public enum Stage {
+		REQUESTED, TAGGED, REGISTERED, RUNNING, CONNECTED, ONLINE
+	}
+
+	private static final int MAX_REQUESTERS_KEPT = 200;
+	private static final Set<ProvisioningOperation> inFlight = new LinkedHashSet<ProvisioningOperation>();
+	private static final Map<String, List<ProvisioningOperation>> byRequester = new LinkedHashMap<String, List<ProvisioningOperation>>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<ProvisioningOperation>> eldest) {
+			return size() > MAX_REQUESTERS_KEPT;
+		}
+	};
+
+	private final String cloudName;
+	private final String templateDescription;
+	private final String ec2Label;
+	private final String requester;
+	private final long startedAt = System.currentTimeMillis();
+	private final Map<Stage, SettableFuture<EC2AbstractSlave>> stageFutures = new EnumMap<Stage, SettableFuture<EC2AbstractSlave>>(Stage.class);
+	private final Map<Stage, Long> stageReachedAt = new EnumMap<Stage, Long>(Stage.class);
+	private volatile Stage stage;
+	private volatile EC2AbstractSlave slave;
+	private volatile String instanceId;
+	private volatile Throwable failure;
+	private volatile boolean cancelled;
+	private volatile boolean restarted;
+
+	private ProvisioningOperation(String cloudName, String templateDescription, String ec2Label, String requester) {
+		this.cloudName = cloudName;
+		this.templateDescription = templateDescription;
+		this.ec2Label = ec2Label;
+		this.requester = requester;
+		for (Stage each : Stage.values())
+			stageFutures.put(each, SettableFuture.<EC2AbstractSlave>create());
+	}
+
+	/**
+	 * @param requester what the instances are launched for, usually the externalizable id of a build
+	 */
+	public static List<ProvisioningOperation> start(String cloudName, String templateDescription, String ec2Label, String requester, int count) {
+		List<ProvisioningOperation> operations = new ArrayList<ProvisioningOperation>();
+		for (int i = 0; i < count; i++)
+			operations.add(new ProvisioningOperation(cloudName, templateDescription, ec2Label, requester));
+		synchronized (inFlight) {
+			inFlight.addAll(operations);
+			if (requester != null) {
+				List<ProvisioningOperation> ofRequester = byRequester.get(requester);
+				if (ofRequester == null) {
+					ofRequester = new ArrayList<ProvisioningOperation>();
+					byRequester.put(requester, ofRequester);
+				}
+				ofRequester.addAll(operations);
+			}
+		}
+		return operations;
+	}
+
+	/**
+	 * Operations started for the requester, finished or not. Only the most recent requesters are kept.
+	 */
+	public static List<ProvisioningOperation> startedFor(String requester) {
+		synchronized (inFlight) {
+			List<ProvisioningOperation> ofRequester = byRequester.get(requester);
+			if (ofRequester == null)
+				return new ArrayList<ProvisioningOperation>();
+			return new ArrayList<ProvisioningOperation>(ofRequester);
+		}
+	}
+
+	public static List<ProvisioningOperation> getInFlight() {
+		synchronized (inFlight) {
+			return new ArrayList<ProvisioningOperation>(inFlight);
+		}
+	}
+
+	/**
+	 * Waits for the operations to register their slaves. When any of them failed, its failure is thrown,
+	 * and the slaves registered by the others are left for later allocations to use.
+	 */
+	public static List<EC2AbstractSlave> awaitRegistered(List<ProvisioningOperation> operations) {
+		List<ListenableFuture<EC2AbstractSlave>> registrations = new ArrayList<ListenableFuture<EC2AbstractSlave>>();
+		for (ProvisioningOperation operation : operations)
+			registrations.add(operation.when(Stage.REGISTERED));
+		List<EC2AbstractSlave> slaves = new ArrayList<EC2AbstractSlave>();
+		try {
+			for (EC2AbstractSlave slave : Futures.successfulAsList(registrations).get()) {
+				if (slave != null)
+					slaves.add(slave);
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+		if (slaves.size() < operations.size()) {
+			for (ProvisioningOperation operation : operations) {
+				if (operation.failure != null)
+					throw new RuntimeException((operations.size() - slaves.size()) + " of " + operations.size() + " instances failed to register", operation.failure);
+			}
+			throw new RuntimeException((operations.size() - slaves.size()) + " of " + operations.size() + " instances were cancelled before registering");
+		}
+		return slaves;
+	}
+
+	/**
+	 * Future completed with the slave, or null before it is registered, once the instance reaches the stage
+	 */
+	public ListenableFuture<EC2AbstractSlave> when(Stage stage) {
+		return stageFutures.get(stage);
+	}
+
+	/**
+	 * Marks the stage, and any stage before it that was skipped, as reached
+	 */
+	public synchronized void reached(Stage reachedStage) {
+		if (isDone())
+			return;
+		long now = System.currentTimeMillis();
+		for (Stage each : Stage.values()) {
+			if (each.compareTo(reachedStage) > 0)
+				break;
+			if (!stageReachedAt.containsKey(each)) {
+				stageReachedAt.put(each, now);
+				Ec2AxisMetrics.stageReached(this, each, now - startedAt);
+			}
+			stageFutures.get(each).set(slave);
+		}
+		stage = reachedStage;
+		if (reachedStage == Stage.ONLINE)
+			finish();
+	}
+
+	public synchronized void failed(Throwable cause) {
+		if (isDone())
+			return;
+		failure = cause;
+		for (SettableFuture<EC2AbstractSlave> future : stageFutures.values())
+			future.setException(cause);
+		finish();
+	}
+
+	/**
+	 * Stops waiting for the stages not reached yet. The launch threads check
+	 * {@link #isCancelled()} and give up on the slave.
+	 */
+	public synchronized boolean cancel() {
+		if (isDone())
+			return false;
+		cancelled = true;
+		for (SettableFuture<EC2AbstractSlave> future : stageFutures.values())
+			future.cancel(false);
+		finish();
+		return true;
+	}
+
+	private void finish() {
+		synchronized (inFlight) {
+			inFlight.remove(this);
+		}
+	}
+
+	public boolean isDone() {
+		return cancelled || failure != null || stage == Stage.ONLINE;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public Stage getStage() {
+		return stage;
+	}
+
+	public synchronized Map<Stage, Long> getStageReachedAt() {
+		return Collections.unmodifiableMap(new EnumMap<Stage, Long>(stageReachedAt));
+	}
+
+	public synchronized long getTimeInStage() {
+		Long since = stage == null ? startedAt : stageReachedAt.get(stage);
+		return System.currentTimeMillis() - since;
+	}
+
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	public String getCloudName() {
+		return cloudName;
+	}
+
+	public String getTemplateDescription() {
+		return templateDescription;
+	}
+
+	public String getEc2Label() {
+		return ec2Label;
+	}
+
+	public String getRequester() {
+		return requester;
+	}
+
+	public EC2AbstractSlave getSlave() {
+		return slave;
+	}
+
+	void setSlave(EC2AbstractSlave slave) {
+		this.slave = slave;
+	}
+
+	public String getInstanceId() {
+		return instanceId;
+	}
+
+	void setInstanceId(String instanceId) {
+		this.instanceId = instanceId;
+	}
+
+	/**
+	 * Whether the instance is a stopped instance that was started again instead of a new one
+	 */
+	public boolean isRestarted() {
+		return restarted;
+	}
+
+	void setRestarted(boolean restarted) {
+		this.restarted = restarted;
+	}
+
+	/**
+	 * Fails the operations that didn't get a slave registered
+	 */
+	static void failUnregistered(List<ProvisioningOperation> operations, Throwable cause) {
+		for (ProvisioningOperation operation : operations) {
+			Stage stage = operation.getStage();
+			if (stage == null || stage.compareTo(Stage.REGISTERED) < 0)
+				operation.failed(cause);
+		}
+	}
+
+	/**
+	 * Forgets every operation, for tests
+	 */
+	static void forgetAll() {
+		synchronized (inFlight) {
+			inFlight.clear();
+			byRequester.clear();
+		}
+	}
+
+	/**
+	 * Operations cancelled before or while their slave was registered. Nobody waits for their slave anymore.
+	 */
+	static List<ProvisioningOperation> cancelledWithSlave(List<ProvisioningOperation> operations) {
+		List<ProvisioningOperation> cancelled = new ArrayList<ProvisioningOperation>();
+		for (ProvisioningOperation operation : operations) {
+			if (operation.isCancelled() && operation.getSlave() != null)
+				cancelled.add(operation);
+		}
+		return cancelled;
+	}
+
+	static List<EC2AbstractSlave> slavesOf(List<ProvisioningOperation> operations) {
+		List<EC2AbstractSlave> slaves = new ArrayList<EC2AbstractSlave>();
+		for (ProvisioningOperation operation : operations) {
+			if (operation.getSlave() != null)
+				slaves.add(operation.getSlave());
+		}
+		return slaves;
+	}
+}
@@ -0,0 +1,47 @@
+package hudson.plugins.ec2;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.slaves.ComputerListener;
+
+import java.io.IOException;
+
+/**
+ * Keeps axis nodes offline when the volume their boot script mounts on remoteFS is not mounted, so
+ * cells don't fill the root volume instead. Restarted instances lose their instance store RAID and
+ * use the root volume, so only the RAID of instances launched for the connecting operation is checked.
+ */
+@Extension
+public class RemoteFsMountCheck extends ComputerListener {
+
+	@Override
+	public void preOnline(Computer c, Channel channel, FilePath root, TaskListener listener) throws IOException, InterruptedException {
+		Node node = c.getNode();
+		if (!(node instanceof EC2AbstractSlave))
+			return;
+		Ec2AxisSlaveTemplate template = EC2AxisCloud.templateOfAxisNode(node);
+		if (template == null || !isMountExpected(template, (EC2AbstractSlave) node))
+			return;
+		String remoteFS = template.remoteFS;
+		int exitCode = root.createLauncher(listener).launch().cmds("mountpoint", "-q", remoteFS).stdout(listener).join();
+		if (exitCode != 0)
+			throw new AbortException(remoteFS + " is not mounted on " + node.getNodeName() + ". Check the boot script output of the instance");
+	}
+
+	private boolean isMountExpected(Ec2AxisSlaveTemplate template, EC2AbstractSlave slave) {
+		if (template.isWorkspaceCache())
+			return true;
+		if (!template.isInstanceStoreRaid())
+			return false;
+		for (ProvisioningOperation operation : ProvisioningOperation.getInFlight()) {
+			if (operation.getSlave() == slave)
+				return !operation.isRestarted();
+		}
+		return false;
+	}
+}
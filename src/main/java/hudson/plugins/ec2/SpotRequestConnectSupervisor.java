@@ -1,57 +1,86 @@
 package hudson.plugins.ec2;
 
+import hudson.model.Computer;
 import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.plugins.ec2.utils.DescribePages;
+import hudson.plugins.ec2.utils.Ec2AxisExecutor;
+import hudson.plugins.ec2.utils.ExponentialBackoff;
+import hudson.remoting.Channel;
+import hudson.slaves.SlaveComputer;
+import hudson.util.StreamCopyThread;
 import hudson.util.TimeUnit2;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
+import jenkins.model.Jenkins;
+
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.StopWatch;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
-import com.amazonaws.services.ec2.model.DescribeInstancesResult;
-import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
-import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.Tag;
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.Session;
 
 final class SpotRequestConnectSupervisor implements Runnable {
+	private static final int SSH_PORT = 22;
+	private static final long ONLINE_POLL_INTERVAL_MILLIS = TimeUnit2.SECONDS.toMillis(1);
+	private static final long INITIAL_RETRY_INTERVAL_MILLIS = TimeUnit2.SECONDS.toMillis(2);
+	private static final long MAX_RETRY_INTERVAL_MILLIS = TimeUnit2.SECONDS.toMillis(60);
 	private final List<SpotInstanceRequest> reqInstances;
-	private final List<EC2AbstractSlave> spotSlaves;
+	private final List<ProvisioningOperation> operations;
 	private final AmazonEC2 ec2;
 	private String remoteAdmin;
 	private char [] privateKey;
 	private EC2Logger logger;
+	private final InstanceReadinessPoller readinessPoller;
+	private final boolean channelOverSsh;
+	private final boolean requireBootCompletion;
+	private final Tag ownerTag;
 
 	public static void start(EC2Logger logger, 
 			List<SpotInstanceRequest> reqInstances, 
-			List<EC2AbstractSlave> spotSlaves, 
+			List<ProvisioningOperation> operations, 
 			AmazonEC2 ec2, 
+			InstanceReadinessPoller readinessPoller,
 			char [] privateKey, 
-			String remoteAdmin) {
-		new Thread(new SpotRequestConnectSupervisor(logger, reqInstances, spotSlaves, ec2, privateKey, remoteAdmin)).start();
+			String remoteAdmin,
+			boolean channelOverSsh,
+			boolean requireBootCompletion,
+			Tag ownerTag) {
+		Ec2AxisExecutor.startDaemon("Spot request connect supervisor",
+				new SpotRequestConnectSupervisor(logger, reqInstances, operations, ec2, readinessPoller, privateKey, remoteAdmin, channelOverSsh, requireBootCompletion, ownerTag));
 	}
 
 	private SpotRequestConnectSupervisor(
 			EC2Logger logger, 
 			List<SpotInstanceRequest> reqInstances,
-			List<EC2AbstractSlave> spotSlaves, 
+			List<ProvisioningOperation> operations, 
 			AmazonEC2 ec2,
+			InstanceReadinessPoller readinessPoller,
 			char [] privateKey, 
-			String remoteAdmin) {
+			String remoteAdmin,
+			boolean channelOverSsh,
+			boolean requireBootCompletion,
+			Tag ownerTag) {
 		this.logger = logger;
+		this.ownerTag = ownerTag;
+		this.channelOverSsh = channelOverSsh;
+		this.requireBootCompletion = requireBootCompletion;
+		this.readinessPoller = readinessPoller;
 		this.reqInstances = reqInstances;
-		this.spotSlaves = spotSlaves;
+		this.operations = operations;
 		this.ec2 = ec2;
 		this.privateKey = privateKey;
 		this.remoteAdmin = remoteAdmin;
@@ -59,20 +88,33 @@ final class SpotRequestConnectSupervisor implements Runnable {
 
 	@Override 
 	public void run() {
+		try {
+			supervise();
+		} finally {
+			// operations whose request was fulfilled are ended by their connection thread
+			for (ProvisioningOperation operation : operations) {
+				if (operation.getInstanceId() == null)
+					operation.failed(new RuntimeException("Supervision of the spot requests ended before the request of the operation was fulfilled"));
+			}
+		}
+	}
+
+	private void supervise() {
 		List<String> spotInstanceRequestIds = new ArrayList<String>();
 		for (SpotInstanceRequest req : reqInstances) {
 			spotInstanceRequestIds.add(req.getSpotInstanceRequestId());
 		}
-		LinkedList<EC2AbstractSlave> remainingSlaves = new LinkedList<EC2AbstractSlave>();
-		for (EC2AbstractSlave ec2AbstractSlave : spotSlaves) {
-			remainingSlaves.add(ec2AbstractSlave);
+		LinkedList<ProvisioningOperation> remainingOperations = new LinkedList<ProvisioningOperation>();
+		for (ProvisioningOperation operation : operations) {
+			if (operation.getSlave() != null)
+				remainingOperations.add(operation);
 		}
 		
 		do {
-			DescribeSpotInstanceRequestsRequest describeRequest = new DescribeSpotInstanceRequestsRequest();
-			describeRequest.setSpotInstanceRequestIds(spotInstanceRequestIds);
-	
-			connectFulfilledInstancesToJenkins(spotInstanceRequestIds, remainingSlaves, describeRequest);
+			forgetCancelledRequests(spotInstanceRequestIds, remainingOperations);
+			connectFulfilledInstancesToJenkins(spotInstanceRequestIds, remainingOperations);
+			if (spotInstanceRequestIds.isEmpty())
+				break;
 	
 			try {
 				Thread.sleep(60 * 1000);
@@ -83,119 +125,203 @@ final class SpotRequestConnectSupervisor implements Runnable {
 
 	private void connectFulfilledInstancesToJenkins(
 			List<String> spotInstanceRequestIds,
-			LinkedList<EC2AbstractSlave> remainingSlaves,
-			DescribeSpotInstanceRequestsRequest describeRequest) {
+			LinkedList<ProvisioningOperation> remainingOperations) {
 		try {
 			logger.println("Checking whether spot requests have been fulfilled");
-			DescribeSpotInstanceRequestsResult describeResult = ec2.describeSpotInstanceRequests(describeRequest);
-			List<SpotInstanceRequest> describeResponses = describeResult.getSpotInstanceRequests();
-
 			List<String> fulfilled = new LinkedList<String>();
-			for (SpotInstanceRequest describeResponse : describeResponses) {
+			for (SpotInstanceRequest describeResponse : DescribePages.spotRequestsById(ec2, spotInstanceRequestIds)) {
 				if (describeResponse.getState().equals("open")) {
 					continue;
 				}
 				logger.println("Request finished with state: "+describeResponse.getState()+ " " + describeResponse.getSpotInstanceRequestId() + " Instance id : " + describeResponse.getInstanceId());
-				fulfilled.add(describeResponse.getInstanceId());
+				if (describeResponse.getInstanceId() != null)
+					fulfilled.add(describeResponse.getInstanceId());
+				else
+					failOperationOfRequest(describeResponse, remainingOperations);
 				spotInstanceRequestIds.remove(describeResponse.getSpotInstanceRequestId());
 			}
 			
-			makeInstancesConnectBackOnJenkins(fulfilled, remainingSlaves);
+			makeInstancesConnectBackOnJenkins(fulfilled, remainingOperations);
 		} catch (Exception e) {
 			logger.printStackTrace(e);
 		}
 	}
 
-	private void makeInstancesConnectBackOnJenkins(List<String> fulfilledInstanceIds, LinkedList<EC2AbstractSlave> remainingSlaves) 
+	private void makeInstancesConnectBackOnJenkins(List<String> fulfilledInstanceIds, LinkedList<ProvisioningOperation> remainingOperations) 
 			throws AmazonClientException, IOException {
 		if (fulfilledInstanceIds.size() == 0)
 			return;
-		assert(remainingSlaves.size() != 0);
+		assert(remainingOperations.size() != 0);
 				
-		DescribeInstancesResult describeInstances = ec2.describeInstances(new DescribeInstancesRequest().withInstanceIds(fulfilledInstanceIds) );
-		List<Instance> instances = new ArrayList<Instance>();
-		
-		List<Reservation> reservations = describeInstances.getReservations();
-		for (Reservation reservation : reservations) {
-			instances.addAll(reservation.getInstances());
-		}
-		
-		logger.println("Count of instances to connect to: " + instances.size());
-		for (final Instance instance : instances) {
-			final EC2AbstractSlave slaveToAssociate = getSlaveToAssociate(instance.getSpotInstanceRequestId(), remainingSlaves);
-			if(slaveToAssociate == null){
+		logger.println("Count of instances to connect to: " + fulfilledInstanceIds.size());
+		tagInstancesWithOwner(fulfilledInstanceIds);
+		for (final Instance instance : DescribePages.instancesById(ec2, fulfilledInstanceIds)) {
+			final ProvisioningOperation operation = getOperationToAssociate(instance.getSpotInstanceRequestId(), remainingOperations);
+			if(operation == null){
 				String message = "SlaveToAssociate is null!!! "+instance.getInstanceId()+"/"+instance.getPrivateIpAddress();
 				logger.println(message);
 				throw new RuntimeException(message);
 			}
+			operation.setInstanceId(instance.getInstanceId());
+			Ec2AxisMetrics.spotFulfilled(operation);
 			logger.println("Firing up connection for "+instance.getSpotInstanceRequestId()+" : "+instance.getInstanceId()+"/"+instance.getPrivateIpAddress());
-			new Thread(new Runnable() {  @Override public void run() {
-				associateSlaveToInstanceIpAddress(instance, slaveToAssociate);
-			}}).start();
+			Ec2AxisExecutor.execute("Connecting " + instance.getInstanceId(), new Runnable() {  @Override public void run() {
+				try {
+					associateSlaveToInstanceIpAddress(instance, operation);
+				} finally {
+					// no-op when the slave came online or the operation already ended
+					operation.failed(new RuntimeException("Connection of " + instance.getInstanceId() + " ended before its slave came online"));
+				}
+			}});
 		}
 		logger.println("Done firing up threads to handle connections for " + StringUtils.join(fulfilledInstanceIds,", "));
 	}
 
-	private EC2AbstractSlave getSlaveToAssociate(String reqId, LinkedList<EC2AbstractSlave> remainingSlaves) {
-		for (EC2AbstractSlave ec2AbstractSlave : remainingSlaves) {
-			if (((EC2SpotSlave)ec2AbstractSlave).getSpotInstanceRequestId().equals(reqId)) {
-				return ec2AbstractSlave;
+	/**
+	 * Tags of spot requests are not copied to their instances, so the owner tag is put on the instances once they exist
+	 */
+	private void tagInstancesWithOwner(List<String> instanceIds) {
+		try {
+			ec2.createTags(new CreateTagsRequest().withResources(instanceIds).withTags(ownerTag));
+		} catch (AmazonClientException e) {
+			logger.println("Could not tag instances " + StringUtils.join(instanceIds, ", ") + " with their owner: " + e.getMessage());
+		}
+	}
+
+	private ProvisioningOperation getOperationToAssociate(String reqId, LinkedList<ProvisioningOperation> remainingOperations) {
+		for (ProvisioningOperation operation : remainingOperations) {
+			if (((EC2SpotSlave) operation.getSlave()).getSpotInstanceRequestId().equals(reqId)) {
+				return operation;
 			}
 		}
 		return null;
 	}
 
-	private void associateSlaveToInstanceIpAddress(Instance instance, EC2AbstractSlave slaveToAssociate) {
+	private void failOperationOfRequest(SpotInstanceRequest request, LinkedList<ProvisioningOperation> remainingOperations) {
+		ProvisioningOperation operation = getOperationToAssociate(request.getSpotInstanceRequestId(), remainingOperations);
+		if (operation != null)
+			operation.failed(new AmazonClientException("Spot request " + request.getSpotInstanceRequestId() + " finished with state " + request.getState()));
+	}
+
+	/**
+	 * Releasing the slave of a cancelled operation also cancels its spot request, if it is still open
+	 */
+	private void forgetCancelledRequests(List<String> spotInstanceRequestIds, LinkedList<ProvisioningOperation> remainingOperations) {
+		for (ProvisioningOperation operation : remainingOperations) {
+			if (!operation.isCancelled())
+				continue;
+			if (spotInstanceRequestIds.remove(((EC2SpotSlave) operation.getSlave()).getSpotInstanceRequestId())) {
+				logger.println("Provisioning of " + operation.getSlave().getNodeName() + " was cancelled. Cancelling its spot request");
+				FinishedBuildProvisioningCanceller.releaseSlave(logger, operation);
+			}
+		}
+	}
+
+	private void associateSlaveToInstanceIpAddress(Instance instance, ProvisioningOperation operation) {
+		EC2AbstractSlave slaveToAssociate = operation.getSlave();
 		String privateIpAddress = instance.getPrivateIpAddress();
-		boolean success;
+		boolean success = false;
 		long timeout = EC2AxisCloud.getTimeout(slaveToAssociate);
-		int retryIntervalSecs = 5;
-		long retryIntervalMillis = TimeUnit2.SECONDS.toMillis(retryIntervalSecs);
 		long maxWait = System.currentTimeMillis() + timeout;
 		StopWatch stopwatch = new StopWatch();
 		stopwatch.start();
 		String slaveName = slaveToAssociate.getDisplayName();
 		
+		if (!waitUntilReachable(instance, timeout)) {
+			Utils.finishSlaveAndQueuedItems(slaveToAssociate);
+			String message = "Instance " + instance.getInstanceId() + " of " + slaveName + " did not become reachable after " + timeout + " ms";
+			logger.println(message);
+			operation.failed(new RuntimeException(message));
+			return;
+		}
+		operation.reached(ProvisioningOperation.Stage.RUNNING);
+		ExponentialBackoff backoff = new ExponentialBackoff(INITIAL_RETRY_INTERVAL_MILLIS, MAX_RETRY_INTERVAL_MILLIS);
 		logger.println("Trying to connect Slave " + slaveName + " "+ slaveToAssociate.getLabelString() + " to "+privateIpAddress);
 		do{
-			success = tryToLaunchSlave(slaveToAssociate.getNodeName(), privateIpAddress);
+			if (Utils.isSlaveRemoved(slaveToAssociate)) {
+				logger.println("Slave " + slaveName + " was removed while connecting. Giving up");
+				operation.failed(new RuntimeException("Slave " + slaveName + " was removed while connecting"));
+				return;
+			}
+			if (operation.isCancelled()) {
+				logger.println("Provisioning of " + slaveName + " was cancelled. Giving up");
+				Utils.finishSlaveAndQueuedItems(slaveToAssociate);
+				return;
+			}
+			success = tryToLaunchSlave(slaveToAssociate, privateIpAddress);
+			if (success)
+				break;
 			try {
-				Thread.sleep(retryIntervalMillis);
+				Thread.sleep(backoff.nextDelay());
 			} catch (InterruptedException e) {
 				logger.println("InterruptedException!!");
 				logger.printStackTrace(e);
 			}
-		} while(!success && System.currentTimeMillis() < maxWait );
+		} while(System.currentTimeMillis() < maxWait );
 		
 		stopwatch.stop();
 		String slaveIdentString = slaveName+"/"+instance.getInstanceId()+"/"+privateIpAddress;
 		if(!success){
 			Utils.finishSlaveAndQueuedItems(slaveToAssociate);
-			logger.println("Slave " + slaveIdentString + " failed to come up after " + timeout + " ms");
+			String message = "Slave " + slaveIdentString + " failed to come up after " + timeout + " ms";
+			logger.println(message);
+			operation.failed(new RuntimeException(message));
 		}
 		else {
+			operation.reached(ProvisioningOperation.Stage.CONNECTED);
+			BootTimeStatistics.record(slaveToAssociate.getNodeDescription(), stopwatch.getTime());
 			logger.println("It took " + stopwatch.getTime() + " ms to connect to "+ slaveIdentString);
+			waitUntilOnline(operation, maxWait);
 		}
 	}
 
-	private boolean tryToLaunchSlave(String slaveToAssociate, String privateIpAddress) {
+	/**
+	 * In the JNLP mode the slave is only online once the agent connects back
+	 */
+	private void waitUntilOnline(ProvisioningOperation operation, long maxWait) {
+		Computer computer = operation.getSlave().toComputer();
+		while (computer != null && !computer.isOnline() && System.currentTimeMillis() < maxWait && !operation.isDone())
+			ThreadUtils.sleepWithoutInterruptions(ONLINE_POLL_INTERVAL_MILLIS);
+		if (computer != null && computer.isOnline())
+			operation.reached(ProvisioningOperation.Stage.ONLINE);
+		else
+			operation.failed(new RuntimeException("Slave " + operation.getSlave().getNodeName() + " connected but didn't come online"));
+	}
+
+	private boolean waitUntilReachable(Instance instance, long timeout) {
+		try {
+			return readinessPoller.awaitReachable(instance.getInstanceId(), true, SSH_PORT, timeout, requireBootCompletion) != null;
+		} catch (InterruptedException e) {
+			logger.printStackTrace(e);
+			return false;
+		}
+	}
+
+	private boolean tryToLaunchSlave(EC2AbstractSlave slaveToAssociate, String privateIpAddress) {
 		String jenkinsUrl = Hudson.getInstance().getRootUrl();
 		
+		Connection sshConnection = new Connection(privateIpAddress);
+		boolean keepConnection = false;
 		try {
-			Connection sshConnection = new Connection(privateIpAddress);
 			sshConnection.connect(new ServerHostKeyVerifier() {
 		        public boolean verifyServerHostKey(String hostname, int port, String serverHostKeyAlgorithm, byte[] serverHostKey) throws Exception {
 		            return true;
 		        }
 		    });
 			if (sshConnection.authenticateWithPublicKey(remoteAdmin, privateKey, "")) {
-				logger.println("Will associate slave " + slaveToAssociate + " with instance whose ip is " + privateIpAddress);
+				logger.println("Will associate slave " + slaveToAssociate.getNodeName() + " with instance whose ip is " + privateIpAddress);
 				
 				try {
-					startSlaveAgentOnRemoteInstance(slaveToAssociate, jenkinsUrl, sshConnection);
+					if (channelOverSsh) {
+						startChannelOverSsh(slaveToAssociate, sshConnection);
+						keepConnection = true;
+					}
+					else
+						startSlaveAgentOnRemoteInstance(slaveToAssociate.getNodeName(), jenkinsUrl, sshConnection);
 					logger.println("Successfully connected to "+privateIpAddress);
 					return true; 
 				}catch(Exception e) {
+					logger.printStackTrace(e);
 					return false;
 				}
 			}
@@ -207,6 +333,64 @@ final class SpotRequestConnectSupervisor implements Runnable {
 		}catch(Exception e) {
 			return false;
 		}
+		finally {
+			if (!keepConnection)
+				sshConnection.close();
+		}
+	}
+
+	/**
+	 * Runs the remoting channel over the stdin/stdout of the session that is already authenticated,
+	 * so the slave doesn't need to download slave.jar from Jenkins nor reach its JNLP port.
+	 * The ssh connection stays open for as long as the channel lives. What the agent prints on its
+	 * stderr goes to the log of the computer.
+	 */
+	private void startChannelOverSsh(EC2AbstractSlave slaveToAssociate, final Connection sshConnection) throws IOException, InterruptedException {
+		Computer computer = slaveToAssociate.toComputer();
+		if (!(computer instanceof SlaveComputer))
+			throw new IOException("Slave " + slaveToAssociate.getNodeName() + " has no computer to attach the channel to");
+
+		String remoteFS = shellQuote(slaveToAssociate.getRemoteFS());
+		Session mkdirSession = sshConnection.openSession();
+		execCommandAndWaitForCompletion(mkdirSession, "mkdir -p " + remoteFS);
+		mkdirSession.close();
+		uploadSlaveJar(sshConnection, remoteFS);
+
+		final Session session = sshConnection.openSession();
+		session.execCommand("cd " + remoteFS + " && java -jar slave.jar");
+		TaskListener listener = ((SlaveComputer) computer).getListener();
+		new StreamCopyThread("stderr of " + slaveToAssociate.getNodeName(), session.getStderr(), listener.getLogger()).start();
+		((SlaveComputer) computer).setChannel(session.getStdout(), session.getStdin(), listener, new Channel.Listener() {
+			@Override
+			public void onClosed(Channel channel, IOException cause) {
+				session.close();
+				sshConnection.close();
+			}
+		});
+	}
+
+	/**
+	 * Streams slave.jar through the session instead of scp, whose target directory is not quoted
+	 */
+	private void uploadSlaveJar(Connection sshConnection, String quotedRemoteFS) throws IOException, InterruptedException {
+		byte[] slaveJar = Jenkins.getInstance().getJnlpJars("slave.jar").readFully();
+		Session uploadSession = sshConnection.openSession();
+		try {
+			uploadSession.execCommand("cat > " + quotedRemoteFS + "/slave.jar");
+			OutputStream stdin = uploadSession.getStdin();
+			stdin.write(slaveJar);
+			stdin.close();
+			waitForCompletion(uploadSession, "upload of slave.jar to " + quotedRemoteFS);
+		} finally {
+			uploadSession.close();
+		}
+	}
+
+	/**
+	 * Single-quotes a path for the remote shell, so spaces and shell characters in it are kept as is
+	 */
+	private static String shellQuote(String path) {
+		return "'" + path.replace("'", "'\\''") + "'";
 	}
 
 	private void startSlaveAgentOnRemoteInstance(String slaveToAssociate, String jenkinsUrl, Connection sshConnection)
@@ -222,11 +406,15 @@ final class SpotRequestConnectSupervisor implements Runnable {
 	}
 
 	private void execCommandAndWaitForCompletion(Session openSession, String cmd) throws IOException, InterruptedException {
-		long timeoutForCommand = TimeUnit2.MINUTES.toMillis(5);
 		openSession.execCommand(cmd);
+		waitForCompletion(openSession, cmd);
+	}
+
+	private void waitForCompletion(Session openSession, String cmd) throws IOException, InterruptedException {
+		long timeoutForCommand = TimeUnit2.MINUTES.toMillis(5);
 		openSession.waitForCondition(ChannelCondition.EXIT_STATUS, timeoutForCommand);
 		Integer exitStatus = openSession.getExitStatus();
-		if(exitStatus != 0){
+		if(exitStatus == null || exitStatus != 0){
 			logger.println("Command failed: " + cmd);
 			throw new RuntimeException("Command failed: " + cmd);
 		}
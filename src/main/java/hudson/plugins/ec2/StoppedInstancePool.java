@@ -0,0 +1,216 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import hudson.plugins.ec2.utils.DescribePages;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.ec2axis.Ec2SafeNodeTaskWorker;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.KeyPair;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+/**
+ * Keeps the number and age of stopped instances of each template within its policy. Idle axis
+ * nodes are stopped instead of terminated while the pool is below its target, because restarting
+ * a stopped instance with a warm workspace is much faster than launching a new one.
+ */
+@Extension
+public class StoppedInstancePool extends AsyncPeriodicWork {
+	private static final Pattern STOP_TIME_PATTERN = Pattern.compile("\\((\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}) GMT\\)");
+
+	public StoppedInstancePool() {
+		super("EC2 Axis stopped instance pool");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit2.MINUTES.toMillis(1);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		EC2Logger logger = new EC2Logger(listener.getLogger());
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			for (SlaveTemplate template : ((EC2AxisCloud) cloud).getTemplates()) {
+				Ec2AxisSlaveTemplate axisTemplate = (Ec2AxisSlaveTemplate) template;
+				if (!axisTemplate.hasStoppedPoolPolicy())
+					continue;
+				try {
+					maintainPool(logger, axisTemplate);
+				} catch (Exception e) {
+					logger.printStackTrace(e);
+				}
+			}
+		}
+	}
+
+	private void maintainPool(EC2Logger logger, Ec2AxisSlaveTemplate template) throws IOException {
+		AmazonEC2 ec2 = AmazonEC2Insistent.wrap(template.getParent().connect(), logger);
+		List<Instance> stoppedInstances = describeStoppedInstances(ec2, template);
+
+		List<Instance> toTerminate = new ArrayList<Instance>();
+		int maxAgeMinutes = template.getStoppedPoolMaxAgeMinutes();
+		for (Instance instance : new ArrayList<Instance>(stoppedInstances)) {
+			if (maxAgeMinutes > 0 && getStoppedTime(instance) + TimeUnit2.MINUTES.toMillis(maxAgeMinutes) < System.currentTimeMillis()) {
+				toTerminate.add(instance);
+				stoppedInstances.remove(instance);
+			}
+		}
+		int target = template.getStoppedPoolTarget();
+		while (target > 0 && stoppedInstances.size() > target)
+			toTerminate.add(stoppedInstances.remove(0));
+		terminate(logger, ec2, template, toTerminate);
+		Ec2AxisMetrics.stoppedPoolSize(template, stoppedInstances.size());
+
+		int missingInPool = target - stoppedInstances.size();
+		if (missingInPool > 0)
+			stopIdleSlaves(logger, ec2, template, missingInPool);
+	}
+
+	/**
+	 * Stopped instances of the template, oldest first
+	 */
+	static List<Instance> describeStoppedInstances(AmazonEC2 ec2, Ec2AxisSlaveTemplate template) throws IOException {
+		KeyPair keyPair = template.getKeyPair(ec2);
+		List<Filter> filters = template.getInstanceFilters(keyPair, template.getEc2SecurityGroups(ec2), InstanceStateName.Stopped.toString());
+		List<Instance> instances = new ArrayList<Instance>();
+		for (Instance instance : DescribePages.instances(ec2, filters, DescribePages.DEFAULT_PAGE_SIZE))
+			instances.add(instance);
+
+		Collections.sort(instances, new Comparator<Instance>() {
+			@Override
+			public int compare(Instance o1, Instance o2) {
+				return Long.compare(getStoppedTime(o1), getStoppedTime(o2));
+			}
+		});
+		return instances;
+	}
+
+	/**
+	 * Stops idle axis slaves of the template while the pool is below its target and
+	 * terminates the remaining ones. Returns the number of slaves that were stopped.
+	 */
+	static int retire(EC2Logger logger, AmazonEC2 ec2, Ec2AxisSlaveTemplate template, List<EC2AbstractSlave> slaves, int missingInPool) {
+		final List<EC2AbstractSlave> toStop = new ArrayList<EC2AbstractSlave>();
+		List<EC2AbstractSlave> toTerminate = new ArrayList<EC2AbstractSlave>();
+		for (EC2AbstractSlave slave : slaves) {
+			if (toStop.size() < missingInPool && slave instanceof EC2OndemandSlave)
+				toStop.add(slave);
+			else
+				toTerminate.add(slave);
+		}
+
+		if (!toStop.isEmpty()) {
+			List<String> instanceIds = new ArrayList<String>();
+			for (EC2AbstractSlave slave : toStop)
+				instanceIds.add(slave.getInstanceId());
+			logger.println("Stopping idle instances to keep them in the pool of " + template.description + ": " + StringUtils.join(instanceIds, ", "));
+			ec2.stopInstances(new StopInstancesRequest(instanceIds));
+			Ec2SafeNodeTaskWorker.invokeAndWait(new Runnable() {  @Override public void run() {
+				for (EC2AbstractSlave slave : toStop) {
+					try {
+						Jenkins.getInstance().removeNode(slave);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}});
+		}
+		for (EC2AbstractSlave slave : toTerminate) {
+			logger.println("Terminating idle slave " + slave.getNodeName());
+			slave.terminate();
+			Ec2AxisMetrics.terminated(template.getParent().name, template.description, "idle", 1);
+		}
+		return toStop.size();
+	}
+
+	private void stopIdleSlaves(EC2Logger logger, AmazonEC2 ec2, Ec2AxisSlaveTemplate template, int missingInPool) {
+		List<EC2AbstractSlave> idleSlaves = new ArrayList<EC2AbstractSlave>();
+		for (Node node : Jenkins.getInstance().getNodes()) {
+			if (!(node instanceof EC2OndemandSlave) || !template.isAxisNode(node))
+				continue;
+			EC2AbstractSlave slave = (EC2AbstractSlave) node;
+			if (isIdleCloseToTermination(slave))
+				idleSlaves.add(slave);
+			if (idleSlaves.size() >= missingInPool)
+				break;
+		}
+		if (!idleSlaves.isEmpty())
+			retire(logger, ec2, template, idleSlaves, missingInPool);
+	}
+
+	/**
+	 * The ec2 plugin terminates slaves once they are idle for idleTerminationMinutes,
+	 * so they are stopped one minute before that happens.
+	 */
+	private boolean isIdleCloseToTermination(EC2AbstractSlave slave) {
+		Computer computer = slave.toComputer();
+		if (computer == null || !computer.isOnline() || !computer.isIdle())
+			return false;
+		int idleMinutes;
+		try {
+			idleMinutes = Integer.parseInt(StringUtils.trim(slave.idleTerminationMinutes));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (idleMinutes <= 0)
+			return false;
+		long idleFor = System.currentTimeMillis() - computer.getIdleStartMilliseconds();
+		return idleFor >= TimeUnit2.MINUTES.toMillis(Math.max(1, idleMinutes - 1));
+	}
+
+	private void terminate(EC2Logger logger, AmazonEC2 ec2, Ec2AxisSlaveTemplate template, List<Instance> toTerminate) {
+		if (toTerminate.isEmpty())
+			return;
+		List<String> instanceIds = new ArrayList<String>();
+		for (Instance instance : toTerminate)
+			instanceIds.add(instance.getInstanceId());
+		logger.println("Terminating stopped instances exceeding the pool policy: " + StringUtils.join(instanceIds, ", "));
+		ec2.terminateInstances(new TerminateInstancesRequest(instanceIds));
+		Ec2AxisMetrics.terminated(template.getParent().name, template.description, "stopped_pool_policy", instanceIds.size());
+		Utils.removeNodesOfInstances(instanceIds);
+	}
+
+	private static long getStoppedTime(Instance instance) {
+		String reason = instance.getStateTransitionReason();
+		if (reason != null) {
+			Matcher matcher = STOP_TIME_PATTERN.matcher(reason);
+			if (matcher.find()) {
+				SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+				format.setTimeZone(TimeZone.getTimeZone("GMT"));
+				try {
+					return format.parse(matcher.group(1)).getTime();
+				} catch (ParseException e) {
+					// falls back to the launch time
+				}
+			}
+		}
+		return instance.getLaunchTime().getTime();
+	}
+}
@@ -1,8 +1,11 @@
 package hudson.plugins.ec2;
 
+import hudson.model.Node;
 import hudson.model.Queue;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.util.List;
 
 import jenkins.model.Jenkins;
@@ -12,14 +15,66 @@ import org.jenkinsci.plugins.ec2axis.Ec2SafeNodeTaskWorker;
 
 public class Utils {
 	public static void finishSlaveAndQueuedItems(EC2AbstractSlave slave) {
+		finishSlaveAndQueuedItems(slave, "launch_failed");
+	}
+
+	/**
+	 * @param reason why the slave is terminated, as reported in the metrics
+	 */
+	public static void finishSlaveAndQueuedItems(EC2AbstractSlave slave, String reason) {
+		if (isSlaveRemoved(slave))
+			return;
 		Queue.Item[] items = Jenkins.getInstance().getQueue().getItems();
 		for (Queue.Item item : items) {
 			if (item.task.getAssignedLabel().getDisplayName().equals(slave.getDisplayName())) {
 				Jenkins.getInstance().getQueue().cancel(item);
 			}
 		}
-		if (!slave.stopOnTerminate)
+		if (!slave.stopOnTerminate) {
 			slave.terminate();
+			Ec2AxisMetrics.terminated(slave, reason);
+		}
+	}
+
+	/**
+	 * Whether the slave was removed from Jenkins while it was being provisioned
+	 */
+	public static boolean isSlaveRemoved(EC2AbstractSlave slave) {
+		return Jenkins.getInstance().getNode(slave.getNodeName()) == null;
+	}
+
+	public static void removeNodesOfInstances(final List<String> instanceIds) {
+		Ec2SafeNodeTaskWorker.invokeAndWait(new Runnable() {
+			@Override public void run() { 
+				for (Node node : Jenkins.getInstance().getNodes()) {
+					if (!(node instanceof EC2AbstractSlave))
+						continue;
+					if (!instanceIds.contains(((EC2AbstractSlave) node).getInstanceId()))
+						continue;
+					try {
+						Jenkins.getInstance().removeNode(node);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		});
+	}
+
+	public static boolean isPortOpen(String host, int port, int timeoutMillis) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
 	}
 
 	public static void addNodesAndWait(final List<EC2AbstractSlave> allocatedSlaves) {
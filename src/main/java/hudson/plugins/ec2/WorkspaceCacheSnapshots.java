@@ -0,0 +1,206 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.plugins.ec2.utils.DescribePages;
+import hudson.slaves.Cloud;
+import hudson.slaves.SlaveComputer;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jenkins.model.Jenkins;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.CreateSnapshotRequest;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.amazonaws.services.ec2.model.Snapshot;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Keeps a recent snapshot of the workspace cache volume of each label of the templates that use one.
+ * The volume of an idle axis node is snapshotted once the latest snapshot is older than the template
+ * allows, and new instances get a volume made from the latest completed snapshot, so they start warm.
+ * Snapshots are tagged with the owner of the cloud, the template and the label, so templates and
+ * controllers that share a label and an account don't use or delete each other's snapshots.
+ */
+@Extension
+public class WorkspaceCacheSnapshots extends AsyncPeriodicWork {
+	static final String LABEL_TAG = "ec2-axis-workspace-cache";
+	static final String TEMPLATE_TAG = "ec2-axis-template";
+	private static final String COMPLETED = "completed";
+	private static final int SNAPSHOTS_KEPT = 2;
+
+	public WorkspaceCacheSnapshots() {
+		super("EC2 Axis workspace cache snapshots");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit2.MINUTES.toMillis(30);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		EC2Logger logger = new EC2Logger(listener.getLogger());
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			for (SlaveTemplate template : ((EC2AxisCloud) cloud).getTemplates()) {
+				Ec2AxisSlaveTemplate axisTemplate = (Ec2AxisSlaveTemplate) template;
+				if (!axisTemplate.isWorkspaceCache())
+					continue;
+				for (Map.Entry<String, Set<Node>> label : ((EC2AxisCloud) cloud).getAxisNodesByLabel(template).entrySet()) {
+					try {
+						refreshSnapshot(logger, listener, axisTemplate, label.getKey(), label.getValue());
+					} catch (Exception e) {
+						logger.printStackTrace(e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mapping of the workspace cache volume for a new instance of the label: made from the latest
+	 * completed snapshot, or empty when there is none yet.
+	 */
+	public static BlockDeviceMapping volumeMapping(AmazonEC2 ec2, Ec2AxisSlaveTemplate template, String ec2Label) {
+		EbsBlockDevice volume = new EbsBlockDevice().withDeleteOnTermination(true);
+		Snapshot latest = latestCompleted(describeSnapshots(ec2, template, ec2Label));
+		if (latest == null)
+			volume.setVolumeSize(template.getWorkspaceCacheSizeGb());
+		else
+			volume.setSnapshotId(latest.getSnapshotId());
+		return new BlockDeviceMapping().withDeviceName(template.getWorkspaceCacheDevice()).withEbs(volume);
+	}
+
+	private void refreshSnapshot(EC2Logger logger, TaskListener listener, Ec2AxisSlaveTemplate template, String ec2Label, Set<Node> nodes)
+			throws IOException, InterruptedException {
+		AmazonEC2 ec2 = AmazonEC2Insistent.wrap(template.getParent().connect(), logger);
+		List<Snapshot> snapshots = describeSnapshots(ec2, template, ec2Label);
+		deleteOldSnapshots(logger, ec2, snapshots);
+		if (!snapshots.isEmpty()) {
+			long latestStart = snapshots.get(snapshots.size() - 1).getStartTime().getTime();
+			if (latestStart + TimeUnit2.HOURS.toMillis(template.getWorkspaceCacheSnapshotHours()) > System.currentTimeMillis())
+				return;
+		}
+
+		for (Node node : nodes) {
+			Computer computer = node.toComputer();
+			if (!template.isAxisNode(node) || computer == null || computer.isOffline() || !computer.isIdle())
+				continue;
+			if (EC2AxisCloud.withdrawFromAllocation(Arrays.asList((EC2AbstractSlave) node), 1).isEmpty())
+				continue;
+			try {
+				if (snapshotCacheVolume(logger, listener, ec2, template, ec2Label, (EC2AbstractSlave) node))
+					return;
+			} finally {
+				((SlaveComputer) computer).setAcceptingTasks(true);
+			}
+		}
+	}
+
+	/**
+	 * Runs while the node is out of allocation, so no build writes to the volume between the sync
+	 * and the point in time of the snapshot, which is fixed when createSnapshot returns.
+	 * Returns false when the node has no cache volume or the sync failed.
+	 */
+	private boolean snapshotCacheVolume(EC2Logger logger, TaskListener listener, AmazonEC2 ec2, Ec2AxisSlaveTemplate template, String ec2Label,
+			EC2AbstractSlave slave) throws IOException, InterruptedException {
+		String volumeId = cacheVolumeOf(ec2, template, slave.getInstanceId());
+		if (volumeId == null)
+			return false;
+		if (slave.createLauncher(listener).launch().cmds("sync").stdout(listener).join() != 0)
+			return false;
+		String snapshotId = ec2.createSnapshot(new CreateSnapshotRequest(volumeId, "Workspace cache of " + ec2Label + " from " + slave.getNodeName()))
+				.getSnapshot().getSnapshotId();
+		try {
+			ec2.createTags(new CreateTagsRequest().withResources(snapshotId).withTags(identityTags(template, ec2Label)));
+		} catch (RuntimeException e) {
+			logger.println("Could not tag snapshot " + snapshotId + ", deleting it: " + e.getMessage());
+			ec2.deleteSnapshot(new DeleteSnapshotRequest(snapshotId));
+			throw e;
+		}
+		logger.println("Snapshot " + snapshotId + " of the workspace cache of " + slave.getNodeName() + " started for " + ec2Label);
+		return true;
+	}
+
+	/**
+	 * Deletes the completed snapshots older than the ones kept. A snapshot that is still pending doesn't count
+	 * as kept, so the older ones stay until it completes.
+	 */
+	private void deleteOldSnapshots(EC2Logger logger, AmazonEC2 ec2, List<Snapshot> snapshots) {
+		List<Snapshot> completed = new ArrayList<Snapshot>();
+		for (Snapshot snapshot : snapshots) {
+			if (COMPLETED.equals(snapshot.getState()))
+				completed.add(snapshot);
+		}
+		for (int i = 0; i < completed.size() - SNAPSHOTS_KEPT; i++) {
+			logger.println("Deleting old workspace cache snapshot " + completed.get(i).getSnapshotId());
+			ec2.deleteSnapshot(new DeleteSnapshotRequest(completed.get(i).getSnapshotId()));
+		}
+	}
+
+	private String cacheVolumeOf(AmazonEC2 ec2, Ec2AxisSlaveTemplate template, String instanceId) {
+		List<String> instanceIds = Collections.singletonList(instanceId);
+		for (Instance instance : DescribePages.instancesById(ec2, instanceIds)) {
+			for (InstanceBlockDeviceMapping mapping : instance.getBlockDeviceMappings()) {
+				if (template.getWorkspaceCacheDevice().equals(mapping.getDeviceName()) && mapping.getEbs() != null)
+					return mapping.getEbs().getVolumeId();
+			}
+		}
+		return null;
+	}
+
+	private static List<Tag> identityTags(Ec2AxisSlaveTemplate template, String ec2Label) {
+		List<Tag> tags = new ArrayList<Tag>();
+		tags.add(((EC2AxisCloud) template.getParent()).getOwnerTag());
+		tags.add(new Tag(TEMPLATE_TAG, template.description));
+		tags.add(new Tag(LABEL_TAG, ec2Label));
+		return tags;
+	}
+
+	/**
+	 * Snapshots of the label of the template, oldest first
+	 */
+	private static List<Snapshot> describeSnapshots(AmazonEC2 ec2, Ec2AxisSlaveTemplate template, String ec2Label) {
+		List<Filter> filters = new ArrayList<Filter>();
+		for (Tag tag : identityTags(template, ec2Label))
+			filters.add(new Filter("tag:" + tag.getKey()).withValues(tag.getValue()));
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		for (Snapshot snapshot : DescribePages.ownSnapshots(ec2, filters, DescribePages.DEFAULT_PAGE_SIZE))
+			snapshots.add(snapshot);
+		Collections.sort(snapshots, new Comparator<Snapshot>() {
+			@Override
+			public int compare(Snapshot o1, Snapshot o2) {
+				return o1.getStartTime().compareTo(o2.getStartTime());
+			}
+		});
+		return snapshots;
+	}
+
+	private static Snapshot latestCompleted(List<Snapshot> snapshots) {
+		for (int i = snapshots.size() - 1; i >= 0; i--) {
+			if (COMPLETED.equals(snapshots.get(i).getState()))
+				return snapshots.get(i);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,186 @@
+package hudson.plugins.ec2.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSnapshotsRequest;
+import com.amazonaws.services.ec2.model.DescribeSnapshotsResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Snapshot;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+
+/**
+ * Iterates over describe results one page at a time, so large fleets are processed as the
+ * pages arrive instead of being loaded whole. Each page is only requested when the previous
+ * one was consumed.
+ */
+public class DescribePages {
+	public static final int DEFAULT_PAGE_SIZE = 200;
+	public static final int IDS_PER_REQUEST = 100;
+
+	/**
+	 * Instances matching the filters, requested in pages of pageSize using NextToken
+	 */
+	public static Iterable<Instance> instances(final AmazonEC2 ec2, final Collection<Filter> filters, final int pageSize) {
+		return new Iterable<Instance>() {
+			@Override
+			public Iterator<Instance> iterator() {
+				return new PageIterator<Instance>() {
+					private String nextToken;
+					private boolean firstPage = true;
+
+					@Override
+					protected List<Instance> nextPage() {
+						if (!firstPage && nextToken == null)
+							return null;
+						firstPage = false;
+						DescribeInstancesResult page = ec2.describeInstances(new DescribeInstancesRequest()
+								.withFilters(filters)
+								.withMaxResults(pageSize)
+								.withNextToken(nextToken));
+						nextToken = page.getNextToken();
+						return instancesOf(page);
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Snapshots owned by the account and matching the filters, requested in pages of pageSize using NextToken
+	 */
+	public static Iterable<Snapshot> ownSnapshots(final AmazonEC2 ec2, final Collection<Filter> filters, final int pageSize) {
+		return new Iterable<Snapshot>() {
+			@Override
+			public Iterator<Snapshot> iterator() {
+				return new PageIterator<Snapshot>() {
+					private String nextToken;
+					private boolean firstPage = true;
+
+					@Override
+					protected List<Snapshot> nextPage() {
+						if (!firstPage && nextToken == null)
+							return null;
+						firstPage = false;
+						DescribeSnapshotsResult page = ec2.describeSnapshots(new DescribeSnapshotsRequest()
+								.withOwnerIds("self")
+								.withFilters(filters)
+								.withMaxResults(pageSize)
+								.withNextToken(nextToken));
+						nextToken = page.getNextToken();
+						return page.getSnapshots();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Instances with the given ids, requested IDS_PER_REQUEST ids at a time. Ids that
+	 * don't exist anymore are skipped.
+	 */
+	public static Iterable<Instance> instancesById(final AmazonEC2 ec2, final List<String> instanceIds) {
+		return new Iterable<Instance>() {
+			@Override
+			public Iterator<Instance> iterator() {
+				return new IdChunkIterator<Instance>(instanceIds) {
+					@Override
+					protected List<Instance> describe(List<String> ids) {
+						return instancesOf(ec2.describeInstances(new DescribeInstancesRequest()
+								.withFilters(new Filter("instance-id").withValues(ids))));
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Spot requests with the given ids, requested IDS_PER_REQUEST ids at a time
+	 */
+	public static Iterable<SpotInstanceRequest> spotRequestsById(final AmazonEC2 ec2, final List<String> spotRequestIds) {
+		return new Iterable<SpotInstanceRequest>() {
+			@Override
+			public Iterator<SpotInstanceRequest> iterator() {
+				return new IdChunkIterator<SpotInstanceRequest>(spotRequestIds) {
+					@Override
+					protected List<SpotInstanceRequest> describe(List<String> ids) {
+						return ec2.describeSpotInstanceRequests(new DescribeSpotInstanceRequestsRequest()
+								.withFilters(new Filter("spot-instance-request-id").withValues(ids)))
+								.getSpotInstanceRequests();
+					}
+				};
+			}
+		};
+	}
+
+	private static List<Instance> instancesOf(DescribeInstancesResult page) {
+		List<Instance> instances = new ArrayList<Instance>();
+		for (Reservation reservation : page.getReservations())
+			instances.addAll(reservation.getInstances());
+		return instances;
+	}
+
+	private static abstract class PageIterator<T> implements Iterator<T> {
+		private Iterator<T> currentPage = Collections.<T>emptyList().iterator();
+		private boolean exhausted = false;
+
+		/**
+		 * The next page, or null when there are no more pages
+		 */
+		protected abstract List<T> nextPage();
+
+		@Override
+		public boolean hasNext() {
+			while (!currentPage.hasNext() && !exhausted) {
+				List<T> page = nextPage();
+				if (page == null)
+					exhausted = true;
+				else
+					currentPage = page.iterator();
+			}
+			return currentPage.hasNext();
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return currentPage.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static abstract class IdChunkIterator<T> extends PageIterator<T> {
+		private final List<String> ids;
+		private int start = 0;
+
+		IdChunkIterator(List<String> ids) {
+			this.ids = new ArrayList<String>(ids);
+		}
+
+		protected abstract List<T> describe(List<String> ids);
+
+		@Override
+		protected List<T> nextPage() {
+			if (start >= ids.size())
+				return null;
+			List<String> chunk = ids.subList(start, Math.min(start + IDS_PER_REQUEST, ids.size()));
+			start += IDS_PER_REQUEST;
+			return describe(chunk);
+		}
+	}
+}
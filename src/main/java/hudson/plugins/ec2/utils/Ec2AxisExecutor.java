@@ -0,0 +1,160 @@
+package hudson.plugins.ec2.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the background work of the plugin, most of which is waiting on instances, ssh
+ * connections and slaves. On JVMs that have virtual threads each task gets one, which makes
+ * thousands of waiting tasks cheap; elsewhere tasks run on a bounded pool of platform threads,
+ * 100 by default, and connections beyond it wait in the queue, which adds to the boot time of
+ * their nodes. Clouds launching more instances at once should raise the pool size.
+ * The mode can be forced with -Dhudson.plugins.ec2.utils.Ec2AxisExecutor.mode=platform|virtual
+ * and the pool size set with -Dhudson.plugins.ec2.utils.Ec2AxisExecutor.poolSize.
+ * Long-lived tasks that the pooled tasks wait on run on threads of their own.
+ */
+public class Ec2AxisExecutor {
+	private static final Logger LOGGER = Logger.getLogger(Ec2AxisExecutor.class.getName());
+	private static final String MODE_PROPERTY = Ec2AxisExecutor.class.getName() + ".mode";
+	private static final String POOL_SIZE_PROPERTY = Ec2AxisExecutor.class.getName() + ".poolSize";
+	private static final int DEFAULT_POOL_SIZE = 100;
+
+	public enum Mode {
+		PLATFORM, VIRTUAL
+	}
+
+	private static Ec2AxisExecutor instance;
+
+	private final Mode mode;
+	private final ExecutorService executor;
+	private final AtomicInteger queuedTasks = new AtomicInteger();
+	private final AtomicInteger runningTasks = new AtomicInteger();
+
+	Ec2AxisExecutor(Mode requestedMode, int poolSize) {
+		ExecutorService virtualThreadExecutor = requestedMode == Mode.VIRTUAL ? newVirtualThreadExecutor() : null;
+		if (virtualThreadExecutor != null) {
+			mode = Mode.VIRTUAL;
+			executor = virtualThreadExecutor;
+		} else {
+			mode = Mode.PLATFORM;
+			executor = newBoundedPool(poolSize);
+		}
+	}
+
+	public static synchronized Ec2AxisExecutor get() {
+		if (instance == null) {
+			String configuredMode = System.getProperty(MODE_PROPERTY);
+			Mode mode = Mode.VIRTUAL;
+			if (configuredMode != null)
+				mode = Mode.valueOf(configuredMode.toUpperCase());
+			int poolSize = Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE);
+			instance = new Ec2AxisExecutor(mode, poolSize);
+			if (instance.mode == Mode.PLATFORM)
+				LOGGER.log(Level.INFO, "EC2 axis background work runs on up to {0} platform threads. Set {1} to change it",
+						new Object[] { poolSize, POOL_SIZE_PROPERTY });
+			else
+				LOGGER.log(Level.INFO, "EC2 axis background work runs on virtual threads");
+		}
+		return instance;
+	}
+
+	/**
+	 * Runs the task in the background. The name is given to the thread while the task runs.
+	 */
+	public static void execute(String name, Runnable task) {
+		get().submit(name, task);
+	}
+
+	/**
+	 * Runs a long-lived task, such as a poller or a supervisor, on its own daemon thread, so it doesn't
+	 * wait in the queue behind the pooled tasks that wait on it.
+	 */
+	public static void startDaemon(final String name, final Runnable task) {
+		Thread thread = new Thread(new Runnable() {  @Override public void run() {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "EC2 axis task " + name + " failed", e);
+			}
+		}}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void submit(final String name, final Runnable task) {
+		queuedTasks.incrementAndGet();
+		executor.execute(new Runnable() {  @Override public void run() {
+			queuedTasks.decrementAndGet();
+			runningTasks.incrementAndGet();
+			Thread current = Thread.currentThread();
+			String previousName = current.getName();
+			current.setName(name);
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "EC2 axis task " + name + " failed", e);
+			} finally {
+				current.setName(previousName);
+				runningTasks.decrementAndGet();
+			}
+		}});
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public int getQueuedTasks() {
+		return queuedTasks.get();
+	}
+
+	public int getRunningTasks() {
+		return runningTasks.get();
+	}
+
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	private static ExecutorService newBoundedPool(int poolSize) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "EC2 axis worker " + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor, looked up by reflection because the plugin is built for older JVMs
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Could not create virtual threads, using platform threads", e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package hudson.plugins.ec2.utils;
+
+public class ExponentialBackoff {
+	private final long maxDelayMillis;
+	private long nextDelayMillis;
+
+	public ExponentialBackoff(long initialDelayMillis, long maxDelayMillis) {
+		this.nextDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	public long nextDelay() {
+		long delay = nextDelayMillis;
+		nextDelayMillis = Math.min(nextDelayMillis * 2, maxDelayMillis);
+		return delay;
+	}
+}
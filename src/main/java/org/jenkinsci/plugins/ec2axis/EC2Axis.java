@@ -14,15 +14,19 @@ import hudson.model.Messages;
 import hudson.model.Label;
 import hudson.model.Run;
 import hudson.model.labels.LabelAtom;
+import hudson.plugins.ec2.AllocationQueue;
+import hudson.plugins.ec2.CellAffinity;
 import hudson.plugins.ec2.EC2AxisCloud;
 import hudson.plugins.ec2.EC2Logger;
+import hudson.plugins.ec2.PartialStartSupervisor;
+import hudson.plugins.ec2.ProvisioningOperation;
 import hudson.util.FormValidation;
 
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
 
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
@@ -39,11 +43,25 @@ public class EC2Axis extends LabelAxis {
 	private final String ec2label;
 	private final Integer instanceBootTimeoutLimit;
 	private boolean createMatrixEnvironmentVariable = false;
+	private boolean packCellsPerExecutor = false;
+	private Integer startQuorumPercent;
+	private Integer startQuorumTimeoutSeconds;
+	private Integer hedgeBootPercentile;
+	private boolean cellAffinity = false;
+	private Integer allocationPriority;
 
 	@DataBoundConstructor
-	public EC2Axis(String name, String ec2label, Integer numberOfSlaves, boolean alwaysCreateNewNodes, boolean createMatrixEnvironmentVariable) {
+	public EC2Axis(String name, String ec2label, Integer numberOfSlaves, boolean alwaysCreateNewNodes, boolean createMatrixEnvironmentVariable, 
+			boolean packCellsPerExecutor, Integer startQuorumPercent, Integer startQuorumTimeoutSeconds, Integer hedgeBootPercentile,
+			boolean cellAffinity, Integer allocationPriority) {
 		super(name, Arrays.asList(ec2label.trim()));
 		this.setCreateMatrixEnvironmentVariable(createMatrixEnvironmentVariable);
+		this.packCellsPerExecutor = packCellsPerExecutor;
+		this.startQuorumPercent = startQuorumPercent;
+		this.startQuorumTimeoutSeconds = startQuorumTimeoutSeconds;
+		this.hedgeBootPercentile = hedgeBootPercentile;
+		this.cellAffinity = cellAffinity;
+		this.allocationPriority = allocationPriority;
 		this.instanceBootTimeoutLimit = DEFAULT_TIMEOUT;
 		this.ec2label = ec2label.trim();
 		this.numberOfSlaves = numberOfSlaves;
@@ -70,19 +88,26 @@ public class EC2Axis extends LabelAxis {
 		return alwaysCreateNewNodes;
 	}
 
-	final static ReentrantLock  labelAllocationLock = new ReentrantLock();
-	
 	@Override
 	public List<String> rebuild(MatrixBuild.MatrixBuildExecution context) {
 		EC2AxisCloud cloudToUse = getCloudToUse();
 		
-		addEc2Description(context, cloudToUse);
+		Ec2AxisDescriptionAction description = addEc2Description(context, cloudToUse);
 
+		final AllocationQueue.Grant grant = waitForAllocationTurnIfNeeded(context);
+		final AtomicBoolean turnReleased = new AtomicBoolean(grant == null);
+		Runnable idleNodesTaken = new Runnable() {  @Override public void run() {
+			if (turnReleased.compareAndSet(false, true))
+				releaseAllocationTurn(grant, numberOfSlaves);
+		}};
+		List<String> allocatedLabels = null;
 		try {
-			lockForIdleNodeAllocationIfNeeded();
-			return allocateNodes(context, cloudToUse);
+			allocatedLabels = allocateNodes(context, cloudToUse, grant == null ? 1 : grant.getIdleNodeShare(), idleNodesTaken);
+			description.trackNodes(allocatedLabels, ProvisioningOperation.startedFor(context.getBuild().getExternalizableId()));
+			return allocatedLabels;
 		}finally {
-			releaseLockForIdleNodeAllocation();
+			if (turnReleased.compareAndSet(false, true))
+				releaseAllocationTurn(grant, allocatedLabels == null ? 0 : allocatedLabels.size());
 		}
 	}
 
@@ -94,7 +119,7 @@ public class EC2Axis extends LabelAxis {
 		return cloudToUse;
 	}
 
-	private void addEc2Description(MatrixBuild.MatrixBuildExecution context, EC2AxisCloud cloudToUse) 
+	private Ec2AxisDescriptionAction addEc2Description(MatrixBuild.MatrixBuildExecution context, EC2AxisCloud cloudToUse) 
 	{
 		Ec2AxisDescriptionAction e = new Ec2AxisDescriptionAction(
 				ec2label,
@@ -102,13 +127,21 @@ public class EC2Axis extends LabelAxis {
 				cloudToUse.getInstanceType(ec2label),
 				cloudToUse.getSpotPriceIfApplicable(ec2label));
 		context.getBuild().getActions().add(e);
+		return e;
 	}
 
+	/**
+	 * @param idleNodesTaken run once the idle nodes are taken, before the missing ones are launched
+	 */
 	public List<String> allocateNodes(MatrixBuild.MatrixBuildExecution context,
-			EC2AxisCloud cloudToUse) {
+			EC2AxisCloud cloudToUse, double idleNodeShare, Runnable idleNodesTaken) {
 		EC2Logger ec2Logger = new EC2Logger(context.getListener().getLogger());
 		List<String> allocateSlavesLabels = cloudToUse.allocateSlavesLabels(
-				ec2Logger, ec2label, numberOfSlaves, instanceBootTimeoutLimit, alwaysCreateNewNodes, createMatrixEnvironmentVariable
+				ec2Logger, ec2label, numberOfSlaves, instanceBootTimeoutLimit, alwaysCreateNewNodes, packCellsPerExecutor, hedgeBootPercentile,
+				context.getBuild().getExternalizableId(),
+				cellAffinity ? CellAffinity.keyOf(context.getBuild().getParent().getFullName(), ec2label) : null,
+				idleNodeShare,
+				idleNodesTaken
 				);
 		
 		ec2Logger.println("Will run on the following labels:-------");
@@ -117,20 +150,31 @@ public class EC2Axis extends LabelAxis {
 		}
 		ec2Logger.println("-----------");
 		
+		if (isPartialStartEnabled())
+			PartialStartSupervisor.start(ec2Logger, allocateSlavesLabels, startQuorumPercent, startQuorumTimeoutSeconds);
+		
 		return allocateSlavesLabels;
 	}
 
-	private void releaseLockForIdleNodeAllocation() {
-		if (alwaysCreateNewNodes)
+	/**
+	 * The turn only covers taking idle nodes. It is released before launching the missing ones, so the launch
+	 * requests of the builds waiting for the label can be batched together.
+	 */
+	private void releaseAllocationTurn(AllocationQueue.Grant grant, int allocatedNodes) {
+		if (grant == null)
 			return;
-		labelAllocationLock.unlock();
+		AllocationQueue.get().release(ec2label, grant, allocatedNodes);
 	}
 
-	public void lockForIdleNodeAllocationIfNeeded() {
+	/**
+	 * Builds that always create new nodes don't take idle ones, so they don't wait for their turn
+	 */
+	public AllocationQueue.Grant waitForAllocationTurnIfNeeded(MatrixBuild.MatrixBuildExecution context) {
 		if (alwaysCreateNewNodes)
-			return;
+			return null;
 		try {
-			labelAllocationLock.lockInterruptibly();
+			return AllocationQueue.get().acquire(new EC2Logger(context.getListener().getLogger()), ec2label,
+					context.getBuild().getParent().getFullName(), getAllocationPriorityOrDefault());
 		} catch (InterruptedException e1) {
 			throw new Run.RunnerAbortedException();
 		}
@@ -216,6 +260,41 @@ public class EC2Axis extends LabelAxis {
 		this.createMatrixEnvironmentVariable = createMatrixEnvironmentVariable;
 	}
 
+	public boolean isPackCellsPerExecutor() {
+		return packCellsPerExecutor;
+	}
+
+	public Integer getStartQuorumPercent() {
+		return startQuorumPercent;
+	}
+
+	public Integer getStartQuorumTimeoutSeconds() {
+		return startQuorumTimeoutSeconds;
+	}
+
+	public Integer getHedgeBootPercentile() {
+		return hedgeBootPercentile;
+	}
+
+	public boolean isCellAffinity() {
+		return cellAffinity;
+	}
+
+	public Integer getAllocationPriority() {
+		return allocationPriority;
+	}
+
+	private int getAllocationPriorityOrDefault() {
+		if (allocationPriority == null)
+			return 1;
+		return allocationPriority;
+	}
+
+	private boolean isPartialStartEnabled() {
+		return startQuorumPercent != null && startQuorumPercent > 0 && startQuorumPercent < 100
+				&& startQuorumTimeoutSeconds != null;
+	}
+
 	@Extension
 	public static class DescriptorImpl extends AxisDescriptor {
 	
@@ -231,9 +310,22 @@ public class EC2Axis extends LabelAxis {
 	                formData.getString("ec2label"),
 	                formData.getInt("numberOfSlaves"),
 	                formData.getBoolean("alwaysCreateNewNodes"),
-	                formData.getBoolean("createMatrixEnvironmentVariable")
+	                formData.getBoolean("createMatrixEnvironmentVariable"),
+	                formData.optBoolean("packCellsPerExecutor"),
+	                optInteger(formData, "startQuorumPercent"),
+	                optInteger(formData, "startQuorumTimeoutSeconds"),
+	                optInteger(formData, "hedgeBootPercentile"),
+	                formData.optBoolean("cellAffinity"),
+	                optInteger(formData, "allocationPriority")
 	        );
 	    }
+
+	    private static Integer optInteger(JSONObject formData, String key) {
+	    	String value = Util.fixEmptyAndTrim(formData.optString(key));
+	    	if (value == null)
+	    		return null;
+	    	return Integer.valueOf(value);
+	    }
 	    
 	    public FormValidation doCheckEc2label(@QueryParameter String value) {
 	    	String[] labels = value.split(" ");
@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.ec2axis;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.matrix.Axis;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixRun;
+import hudson.model.EnvironmentContributor;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.ec2.CellLabels;
+import hudson.plugins.ec2.EC2AxisCloud;
+
+import java.io.IOException;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Cells that share a node, or that were moved to another node, can't be told apart by the node
+ * environment, so the matrix execution id is taken from the cell the axis assigned to the run.
+ * Once the cell is no longer pending, packed cells fall back to the number in their label.
+ */
+@Extension
+public class Ec2AxisCellEnvironmentContributor extends EnvironmentContributor {
+
+	@Override
+	public void buildEnvironmentFor(@SuppressWarnings("rawtypes") Run r, EnvVars envs, TaskListener listener) throws IOException, InterruptedException {
+		if (!(r instanceof MatrixRun))
+			return;
+		MatrixConfiguration configuration = ((MatrixRun) r).getParent();
+		MatrixBuild build = ((MatrixRun) r).getParentBuild();
+		for (Axis axis : configuration.getParent().getAxes()) {
+			if (!(axis instanceof EC2Axis))
+				continue;
+			EC2Axis ec2Axis = (EC2Axis) axis;
+			if (!ec2Axis.isCreateMatrixEnvironmentVariable())
+				continue;
+			String cellLabel = configuration.getCombination().get(ec2Axis.getName());
+			if (cellLabel == null)
+				continue;
+			Integer execId = build == null ? null : CellLabels.execIdOf(build.getExternalizableId(), cellLabel);
+			if (execId != null)
+				envs.put(EC2AxisCloud.SLAVE_MATRIX_ENV_VAR_NAME, execId.toString());
+			else if (ec2Axis.isPackCellsPerExecutor() && cellLabel.contains(EC2AxisCloud.SLAVE_NUM_SEPARATOR))
+				envs.put(EC2AxisCloud.SLAVE_MATRIX_ENV_VAR_NAME, StringUtils.substringAfterLast(cellLabel, EC2AxisCloud.SLAVE_NUM_SEPARATOR));
+		}
+	}
+}
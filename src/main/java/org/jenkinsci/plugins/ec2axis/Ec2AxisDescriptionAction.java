@@ -1,13 +1,95 @@
 package org.jenkinsci.plugins.ec2axis;
 
+import hudson.Util;
 import hudson.model.Action;
+import hudson.plugins.ec2.EC2AxisCloud;
+import hudson.plugins.ec2.ProvisioningOperation;
+import hudson.plugins.ec2.ProvisioningOperation.Stage;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class Ec2AxisDescriptionAction implements Action {
 
+	public enum Origin {
+		REUSED, RESTARTED, NEW
+	}
+
+	/**
+	 * How one node allocated to the build was obtained and when it reached each stage
+	 */
+	public static class NodeTiming {
+		private final String nodeName;
+		private final Origin origin;
+		private Long requestedAt;
+		private Long runningAt;
+		private Long connectedAt;
+		private Long onlineAt;
+
+		NodeTiming(String nodeName, Origin origin) {
+			this.nodeName = nodeName;
+			this.origin = origin;
+		}
+
+		synchronized void update(ProvisioningOperation operation) {
+			Map<Stage, Long> reachedAt = operation.getStageReachedAt();
+			requestedAt = operation.getStartedAt();
+			runningAt = reachedAt.get(Stage.RUNNING);
+			connectedAt = reachedAt.get(Stage.CONNECTED);
+			onlineAt = reachedAt.get(Stage.ONLINE);
+		}
+
+		public String getNodeName() {
+			return nodeName;
+		}
+
+		public Origin getOrigin() {
+			return origin;
+		}
+
+		public synchronized Long getRequestedAt() {
+			return requestedAt;
+		}
+
+		public synchronized Long getRunningAt() {
+			return runningAt;
+		}
+
+		public synchronized Long getConnectedAt() {
+			return connectedAt;
+		}
+
+		public synchronized Long getOnlineAt() {
+			return onlineAt;
+		}
+
+		/**
+		 * Time from the request until the node was online, 0 for reused nodes and null if it never got online
+		 */
+		public synchronized Long getTimeToOnline() {
+			if (origin == Origin.REUSED)
+				return 0L;
+			if (requestedAt == null || onlineAt == null)
+				return null;
+			return onlineAt - requestedAt;
+		}
+	}
+
 	private String ec2label;
 	private Integer numberOfSlaves;
 	private String currentBidPrice;
 	private String instanceType;
+	private List<NodeTiming> nodeTimings = new ArrayList<NodeTiming>();
 
 	public Ec2AxisDescriptionAction(String ec2label, Integer numberOfSlaves, String instanceType, String currentBidPrice) 
 	{
@@ -16,8 +98,69 @@ public class Ec2AxisDescriptionAction implements Action {
 		this.instanceType = instanceType;
 		this.currentBidPrice = currentBidPrice;
 	}
-	
-	
+
+	/**
+	 * Records the nodes allocated to the build. Nodes launched by one of the operations are followed
+	 * until they are online, the others were idle nodes that got reused.
+	 */
+	public void trackNodes(List<String> allocatedLabels, List<ProvisioningOperation> operations) {
+		Set<String> nodeNames = new LinkedHashSet<String>();
+		for (String allocatedLabel : allocatedLabels)
+			nodeNames.add(StringUtils.substringBefore(allocatedLabel, EC2AxisCloud.SLAVE_NUM_SEPARATOR));
+		for (String nodeName : nodeNames) {
+			final ProvisioningOperation operation = operationOfNode(nodeName, operations);
+			if (operation == null) {
+				addNodeTiming(new NodeTiming(nodeName, Origin.REUSED));
+				continue;
+			}
+			final NodeTiming timing = new NodeTiming(nodeName, operation.isRestarted() ? Origin.RESTARTED : Origin.NEW);
+			timing.update(operation);
+			addNodeTiming(timing);
+			operation.when(Stage.ONLINE).addListener(new Runnable() {  @Override public void run() {
+				timing.update(operation);
+			}}, MoreExecutors.sameThreadExecutor());
+		}
+	}
+
+	private ProvisioningOperation operationOfNode(String nodeName, List<ProvisioningOperation> operations) {
+		for (ProvisioningOperation operation : operations) {
+			if (operation.getSlave() != null && operation.getSlave().getNodeName().equals(nodeName))
+				return operation;
+		}
+		return null;
+	}
+
+	private synchronized void addNodeTiming(NodeTiming timing) {
+		if (nodeTimings == null)
+			nodeTimings = new ArrayList<NodeTiming>();
+		nodeTimings.add(timing);
+	}
+
+	public synchronized List<NodeTiming> getNodeTimings() {
+		if (nodeTimings == null)
+			return new ArrayList<NodeTiming>();
+		return new ArrayList<NodeTiming>(nodeTimings);
+	}
+
+	/**
+	 * Times to online of the launched nodes that got online, sorted
+	 */
+	List<Long> getLaunchTimesToOnline() {
+		List<Long> times = new ArrayList<Long>();
+		for (NodeTiming timing : getNodeTimings()) {
+			if (timing.getOrigin() != Origin.REUSED && timing.getTimeToOnline() != null)
+				times.add(timing.getTimeToOnline());
+		}
+		Collections.sort(times);
+		return times;
+	}
+
+	static long percentile(List<Long> sortedValues, int percentile) {
+		int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.size());
+		return sortedValues.get(Math.max(rank - 1, 0));
+	}
+
+
     public String getIconPath() { return ""; }
     public String getText() { 
     	String text = 
@@ -28,10 +171,51 @@ public class Ec2AxisDescriptionAction implements Action {
     		text += "<br><b>Instance Type:</b> " + instanceType;
     	if (currentBidPrice != null) 
     		text += "<br><b>Spot bid price:</b> $" + currentBidPrice;
-    	
-    	return text; 
+
+    	List<NodeTiming> timings = getNodeTimings();
+    	if (!timings.isEmpty())
+    		text += getTimingText(timings);
+    	return text;
     }
 
+	private String getTimingText(List<NodeTiming> timings) {
+		int reused = 0, restarted = 0, launched = 0;
+		for (NodeTiming timing : timings) {
+			if (timing.getOrigin() == Origin.REUSED)
+				reused++;
+			else if (timing.getOrigin() == Origin.RESTARTED)
+				restarted++;
+			else
+				launched++;
+		}
+		String text = "<br><b>Nodes:</b> " + reused + " reused, " + restarted + " restarted, " + launched + " new";
+		List<Long> times = getLaunchTimesToOnline();
+		if (!times.isEmpty()) {
+			text += "<br><b>Time to online of started nodes:</b> p50 " + Util.getTimeSpanString(percentile(times, 50))
+					+ ", p90 " + Util.getTimeSpanString(percentile(times, 90))
+					+ ", max " + Util.getTimeSpanString(times.get(times.size() - 1));
+		}
+
+		text += "<table class='pane'><tr><th>Node</th><th>Origin</th><th>Requested</th><th>Running</th>"
+				+ "<th>SSH connected</th><th>Online</th><th>Time to online</th></tr>";
+		SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+		for (NodeTiming timing : timings) {
+			Long timeToOnline = timing.getTimeToOnline();
+			text += "<tr><td>" + Util.escape(timing.getNodeName()) + "</td>"
+					+ "<td>" + timing.getOrigin().toString().toLowerCase() + "</td>"
+					+ "<td>" + formatTime(timeFormat, timing.getRequestedAt()) + "</td>"
+					+ "<td>" + formatTime(timeFormat, timing.getRunningAt()) + "</td>"
+					+ "<td>" + formatTime(timeFormat, timing.getConnectedAt()) + "</td>"
+					+ "<td>" + formatTime(timeFormat, timing.getOnlineAt()) + "</td>"
+					+ "<td>" + (timeToOnline == null ? "-" : Util.getTimeSpanString(timeToOnline)) + "</td></tr>";
+		}
+		return text + "</table>";
+	}
+
+	private static String formatTime(SimpleDateFormat timeFormat, Long time) {
+		return time == null ? "-" : timeFormat.format(new Date(time));
+	}
+
 	@Override
 	public String getIconFileName() {
 		return "";
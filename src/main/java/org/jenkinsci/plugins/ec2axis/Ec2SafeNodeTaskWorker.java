@@ -37,6 +37,10 @@ public class Ec2SafeNodeTaskWorker extends PeriodicWork {
 		}
 	}
 
+	public static int getQueueDepth() {
+		return tasks.size();
+	}
+
 	public static FutureTask<Void> invoke(final Runnable task) {
 		FutureTask<Void> futureTask = new FutureTask<>(task, null);
 		tasks.offer(futureTask);
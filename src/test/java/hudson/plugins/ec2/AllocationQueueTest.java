@@ -0,0 +1,70 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class AllocationQueueTest {
+	private static final long HALF_LIFE = 30 * 60 * 1000L;
+
+	private final AllocationQueue.LabelQueue queue = new AllocationQueue.LabelQueue();
+
+	@Test
+	public void projectWithLessUsageGoesFirst() {
+		queue.charge("nightly", 50, 0);
+		AllocationQueue.Request nightly = waiting("nightly", 1, 0);
+		AllocationQueue.Request pullRequest = waiting("pull-request", 1, 1);
+
+		assertSame(pullRequest, queue.next(0));
+		queue.waiting.remove(pullRequest);
+		assertSame(nightly, queue.next(0));
+	}
+
+	@Test
+	public void priorityWeighsTheUsage() {
+		queue.charge("nightly", 10, 0);
+		queue.charge("pull-request", 40, 0);
+		waiting("nightly", 1, 0);
+		AllocationQueue.Request pullRequest = waiting("pull-request", 10, 1);
+
+		assertSame(pullRequest, queue.next(0));
+	}
+
+	@Test
+	public void oldestRequestGoesFirstOnEqualUsage() {
+		AllocationQueue.Request first = waiting("a", 1, 0);
+		waiting("b", 1, 1);
+
+		assertSame(first, queue.next(0));
+	}
+
+	@Test
+	public void usageDecays() {
+		queue.charge("nightly", 8, 0);
+
+		assertEquals(4, queue.usageOf("nightly", HALF_LIFE), 0.001);
+	}
+
+	@Test
+	public void shareIsWeightedAmongWaitingProjects() {
+		waiting("nightly", 1, 0);
+		waiting("nightly", 1, 1);
+		waiting("other", 2, 2);
+
+		assertEquals(0.5, queue.shareOf(new AllocationQueue.Request("pull-request", 3, 3)), 0.001);
+	}
+
+	@Test
+	public void idleNodesAreLimitedToTheShare() {
+		assertEquals(3, EC2AxisCloud.idleNodesAllowed(10, 3, 1));
+		assertEquals(5, EC2AxisCloud.idleNodesAllowed(10, 8, 0.5));
+		assertEquals(1, EC2AxisCloud.idleNodesAllowed(1, 8, 0.1));
+	}
+
+	private AllocationQueue.Request waiting(String project, int weight, long sequence) {
+		AllocationQueue.Request request = new AllocationQueue.Request(project, weight, sequence);
+		queue.waiting.add(request);
+		return request;
+	}
+}
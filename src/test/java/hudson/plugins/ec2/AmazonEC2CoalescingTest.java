@@ -0,0 +1,143 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+
+public class AmazonEC2CoalescingTest {
+
+	private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+	private final AmazonEC2 subject = AmazonEC2Coalescing.wrap(ec2, 0);
+	private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+	@Rule
+	public ExpectedException expectedException = ExpectedException.none();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void concurrentCallsAreMergedAndSplitBack() throws Exception {
+		when(ec2.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(new InstancesOfFilter());
+		AmazonEC2 coalesced = AmazonEC2Coalescing.wrap(ec2, new WindowClosingAfter(3));
+
+		List<Future<DescribeInstancesResult>> results = new ArrayList<Future<DescribeInstancesResult>>();
+		results.add(describeInBackground(coalesced, new DescribeInstancesRequest().withInstanceIds("i-1")));
+		results.add(describeInBackground(coalesced, new DescribeInstancesRequest().withInstanceIds("i-2", "i-3")));
+		results.add(describeInBackground(coalesced, new DescribeInstancesRequest().withFilters(new Filter("instance-id").withValues("i-4"))));
+
+		assertEquals("[i-1]", instanceIdsOf(results.get(0).get()));
+		assertEquals("[i-2, i-3]", instanceIdsOf(results.get(1).get()));
+		assertEquals("[i-4]", instanceIdsOf(results.get(2).get()));
+		verify(ec2, times(1)).describeInstances(any(DescribeInstancesRequest.class));
+	}
+
+	@Test
+	public void requestsWithOtherFiltersAreNotCoalesced() {
+		DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(new Filter("key-name").withValues("jenkins"));
+		DescribeInstancesResult expectedResult = new DescribeInstancesResult();
+		when(ec2.describeInstances(request)).thenReturn(expectedResult);
+
+		assertEquals(expectedResult, subject.describeInstances(request));
+	}
+
+	@Test
+	public void errorIsPropagatedToTheCaller() {
+		when(ec2.describeInstances(any(DescribeInstancesRequest.class))).thenThrow(new AmazonServiceException("Service Error"));
+
+		expectedException.expect(AmazonServiceException.class);
+		expectedException.expectMessage("Service Error");
+
+		subject.describeInstances(new DescribeInstancesRequest().withInstanceIds("i-1"));
+	}
+
+	@Test
+	public void interruptedWaiterGetsAClientExceptionAndKeepsItsInterruptFlag() throws Exception {
+		final CountDownLatch describing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		when(ec2.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(new Answer<DescribeInstancesResult>() {
+			@Override
+			public DescribeInstancesResult answer(InvocationOnMock invocation) throws Throwable {
+				describing.countDown();
+				release.await();
+				return new InstancesOfFilter().answer(invocation);
+			}
+		});
+		Future<DescribeInstancesResult> leader = describeInBackground(subject, new DescribeInstancesRequest().withInstanceIds("i-1"));
+		describing.await();
+
+		Thread.currentThread().interrupt();
+		try {
+			subject.describeInstances(new DescribeInstancesRequest().withInstanceIds("i-1"));
+			fail("Interrupted waiter should not get a result");
+		} catch (AmazonClientException e) {
+			assertTrue(Thread.interrupted());
+		} finally {
+			release.countDown();
+		}
+		assertEquals("[i-1]", instanceIdsOf(leader.get()));
+		verify(ec2, times(1)).describeInstances(any(DescribeInstancesRequest.class));
+	}
+
+	private Future<DescribeInstancesResult> describeInBackground(final AmazonEC2 coalesced, final DescribeInstancesRequest request) {
+		return executor.submit(new Callable<DescribeInstancesResult>() {
+			@Override
+			public DescribeInstancesResult call() {
+				return coalesced.describeInstances(request);
+			}
+		});
+	}
+
+	private static String instanceIdsOf(DescribeInstancesResult result) {
+		List<String> ids = new ArrayList<String>();
+		for (Reservation reservation : result.getReservations()) {
+			for (Instance instance : reservation.getInstances())
+				ids.add(instance.getInstanceId());
+		}
+		Collections.sort(ids);
+		return ids.toString();
+	}
+
+	private static class InstancesOfFilter implements Answer<DescribeInstancesResult> {
+		@Override
+		public DescribeInstancesResult answer(InvocationOnMock invocation) {
+			DescribeInstancesRequest request = (DescribeInstancesRequest) invocation.getArguments()[0];
+			List<Instance> instances = new ArrayList<Instance>();
+			for (String instanceId : request.getFilters().get(0).getValues())
+				instances.add(new Instance().withInstanceId(instanceId));
+			return new DescribeInstancesResult().withReservations(new Reservation().withInstances(instances));
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Node;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CellAffinityTest {
+
+	private final Node a = node("a");
+	private final Node b = node("b");
+	private final Node c = node("c");
+
+	@Test
+	public void nodesGetTheirPreviousCellsBack() {
+		List<Node> arranged = CellAffinity.arrange(Arrays.asList(a, b, c), Arrays.asList("x", "c", "a"));
+
+		assertEquals(Arrays.asList(b, c, a), arranged);
+	}
+
+	@Test
+	public void previousCellsBeyondTheCellCountAreIgnored() {
+		List<Node> arranged = CellAffinity.arrange(Arrays.asList(a, b), Arrays.asList("x", "y", "a"));
+
+		assertEquals(Arrays.asList(a, b), arranged);
+	}
+
+	@Test
+	public void previousNodesAreCandidatesFirst() {
+		List<Node> candidates = CellAffinity.preferPrevious(Arrays.asList(a, b, c), Arrays.asList("c", "b"));
+
+		assertEquals(Arrays.asList(c, b, a), candidates);
+	}
+
+	private static Node node(String name) {
+		Node node = mock(Node.class);
+		when(node.getNodeName()).thenReturn(name);
+		return node;
+	}
+}
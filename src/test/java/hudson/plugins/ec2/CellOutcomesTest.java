@@ -0,0 +1,50 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.matrix.AxisList;
+import hudson.matrix.Combination;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
+import hudson.matrix.TextAxis;
+import hudson.plugins.ec2.NodeHealthMonitor.CellOutcomes;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jenkinsci.plugins.ec2axis.EC2Axis;
+import org.junit.Test;
+
+public class CellOutcomesTest {
+
+	@Test
+	public void cellKeyIsTheSameOnEveryNode() {
+		assertEquals(CellOutcomes.cellKey(runOn("ec2-1", "7"), "linux"), CellOutcomes.cellKey(runOn("ec2-2", "7"), "linux"));
+	}
+
+	@Test
+	public void cellKeyKeepsTheValuesOfTheOtherAxes() {
+		assertEquals("project/linux/jdk=8", CellOutcomes.cellKey(runOn("ec2-1", "8"), "linux"));
+	}
+
+	private MatrixRun runOn(String node, String jdk) {
+		EC2Axis ec2Axis = mock(EC2Axis.class);
+		when(ec2Axis.getName()).thenReturn("nodes");
+		MatrixProject project = mock(MatrixProject.class);
+		when(project.getAxes()).thenReturn(new AxisList(ec2Axis, new TextAxis("jdk", "7", "8")));
+		when(project.getFullName()).thenReturn("project");
+
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("nodes", node);
+		values.put("jdk", jdk);
+		MatrixConfiguration configuration = mock(MatrixConfiguration.class);
+		when(configuration.getParent()).thenReturn(project);
+		when(configuration.getCombination()).thenReturn(new Combination(values));
+		MatrixRun run = mock(MatrixRun.class);
+		when(run.getParent()).thenReturn(configuration);
+		return run;
+	}
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+public class DemandHistoryTest {
+	private static final long HOUR = 60 * 60 * 1000L;
+	private static final long WEEK = 7 * 24 * HOUR;
+
+	private final DemandHistory history = new DemandHistory();
+	private final long monday = new GregorianCalendar(2014, Calendar.JANUARY, 6, 10, 0).getTimeInMillis();
+
+	@Test
+	public void demandOfAnHourIsFoldedIntoItsSlot() {
+		DemandHistory.LabelDemand demand = demandAtHour(1000, 10);
+
+		assertTrue(DemandHistory.rollToHour(demand, 1001));
+
+		assertEquals(3, demand.expectedSlaves[DemandHistory.hourOfWeek(1000)], 0.001);
+		assertEquals(10, demand.actualDemandTotal, 0.001);
+		assertEquals(10, demand.forecastAbsoluteError, 0.001);
+		assertEquals(1001, demand.currentHourIndex);
+		assertEquals(0, demand.currentHourDemand);
+	}
+
+	@Test
+	public void rollingWithinTheSameHourChangesNothing() {
+		DemandHistory.LabelDemand demand = demandAtHour(1000, 10);
+
+		assertFalse(DemandHistory.rollToHour(demand, 1000));
+
+		assertEquals(10, demand.currentHourDemand);
+		assertEquals(0, demand.actualDemandTotal, 0.001);
+	}
+
+	@Test
+	public void demandBeforeAGapLongerThanAWeekStaysInTheSlotOfItsHour() {
+		DemandHistory.LabelDemand demand = demandAtHour(1000, 10);
+		for (int slot = 0; slot < demand.expectedSlaves.length; slot++)
+			demand.expectedSlaves[slot] = 1;
+
+		DemandHistory.rollToHour(demand, 1500);
+
+		for (int slot = 0; slot < demand.expectedSlaves.length; slot++) {
+			double expected = slot == DemandHistory.hourOfWeek(1000) ? 3.7 : 0.7;
+			assertEquals("slot " + slot, expected, demand.expectedSlaves[slot], 0.001);
+		}
+		assertEquals(10, demand.actualDemandTotal, 0.001);
+		assertEquals(1500, demand.currentHourIndex);
+	}
+
+	@Test
+	public void forecastIsTheHighestExpectedDemandWithinTheLead() {
+		history.recordDemand("linux", 10, monday);
+		history.recordDemand("linux", 30, monday + 2 * HOUR);
+
+		assertEquals(0, history.forecast("linux", monday + WEEK - HOUR, 0));
+		assertEquals(3, history.forecast("linux", monday + WEEK - HOUR, 60));
+		assertEquals(9, history.forecast("linux", monday + WEEK - HOUR, 180));
+	}
+
+	@Test
+	public void labelWithoutDemandHasNoForecast() {
+		assertEquals(0, history.forecast("linux", monday, 60));
+	}
+
+	@Test
+	public void reportMeasuresTheForecastAgainstTheActualDemand() {
+		history.recordDemand("linux", 10, monday);
+		history.recordDemand("linux", 10, monday + WEEK);
+		history.forecast("linux", monday + WEEK + HOUR, 0);
+
+		assertEquals("linux: forecast accuracy 15.0%, pre-warmed slaves used 0, wasted instance-minutes 0", history.getReport("linux"));
+	}
+
+	@Test
+	public void reportOfALabelWithoutDemand() {
+		assertEquals("linux: no demand recorded", history.getReport("linux"));
+	}
+
+	private static DemandHistory.LabelDemand demandAtHour(long hourIndex, int slaves) {
+		DemandHistory.LabelDemand demand = new DemandHistory.LabelDemand();
+		demand.currentHourIndex = hourIndex;
+		demand.currentHourDemand = slaves;
+		return demand;
+	}
+}
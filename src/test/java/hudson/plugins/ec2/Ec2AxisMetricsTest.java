@@ -0,0 +1,69 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class Ec2AxisMetricsTest {
+
+	private final Ec2AxisMetrics subject = new Ec2AxisMetrics();
+
+	@Test
+	public void exportsCountersWithTheirLabels() {
+		subject.increment("calls_total", "Calls", "method", "runInstances", "outcome", "ok");
+		subject.increment("calls_total", "Calls", "method", "runInstances", "outcome", "ok");
+
+		String exported = subject.export();
+
+		assertTrue(exported.contains("# HELP calls_total Calls\n# TYPE calls_total counter\n"));
+		assertTrue(exported.contains("calls_total{method=\"runInstances\",outcome=\"ok\"} 2\n"));
+	}
+
+	@Test
+	public void addsToCountersInOneStep() {
+		subject.add("terminations_total", "Terminations", 3, "reason", "idle");
+		subject.add("terminations_total", "Terminations", 0, "reason", "idle");
+
+		assertTrue(subject.export().contains("terminations_total{reason=\"idle\"} 3\n"));
+	}
+
+	@Test
+	public void replacedGaugesDropLabelValuesThatAreGone() {
+		subject.setGauge("nodes", "Nodes", 2, "state", "idle");
+		subject.setGauge("nodes", "Nodes", 1, "state", "busy");
+		subject.setGauge("pool_size", "Pool", 4);
+		Ec2AxisMetrics refreshed = new Ec2AxisMetrics();
+		refreshed.setGauge("nodes", "Nodes", 3, "state", "idle");
+
+		subject.replaceFamilies(refreshed, "nodes", "in_flight");
+
+		String exported = subject.export();
+		assertTrue(exported.contains("nodes{state=\"idle\"} 3\n"));
+		assertFalse(exported.contains("state=\"busy\""));
+		assertFalse(exported.contains("in_flight"));
+		assertTrue(exported.contains("pool_size 4\n"));
+	}
+
+	@Test
+	public void exportsCumulativeHistogramBuckets() {
+		subject.observeDuration("boot_seconds", "Boot", 3000, "template", "linux");
+		subject.observeDuration("boot_seconds", "Boot", 45000, "template", "linux");
+
+		String exported = subject.export();
+
+		assertTrue(exported.contains("boot_seconds_bucket{template=\"linux\",le=\"1\"} 0\n"));
+		assertTrue(exported.contains("boot_seconds_bucket{template=\"linux\",le=\"5\"} 1\n"));
+		assertTrue(exported.contains("boot_seconds_bucket{template=\"linux\",le=\"60\"} 2\n"));
+		assertTrue(exported.contains("boot_seconds_bucket{template=\"linux\",le=\"+Inf\"} 2\n"));
+		assertTrue(exported.contains("boot_seconds_sum{template=\"linux\"} 48\n"));
+		assertTrue(exported.contains("boot_seconds_count{template=\"linux\"} 2\n"));
+	}
+
+	@Test
+	public void escapesLabelValues() {
+		subject.setGauge("nodes", "Nodes", 1, "template", "say \"hi\"");
+
+		assertTrue(subject.export().contains("nodes{template=\"say \\\"hi\\\"\"} 1\n"));
+	}
+}
@@ -0,0 +1,41 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class IdleScaleInTest {
+	private static final long DELAY = 10 * 60 * 1000L;
+
+	private final IdleScaleIn.Hysteresis hysteresis = new IdleScaleIn.Hysteresis();
+
+	@Test
+	public void nothingIsRetiredBeforeTheDelay() {
+		assertEquals(0, hysteresis.nodesToRetire(10, 2, DELAY, 5, 0));
+		assertEquals(0, hysteresis.nodesToRetire(10, 2, DELAY, 5, DELAY - 1));
+	}
+
+	@Test
+	public void excessIsRetiredInBatchesAfterTheDelay() {
+		hysteresis.nodesToRetire(10, 2, DELAY, 5, 0);
+
+		assertEquals(5, hysteresis.nodesToRetire(10, 2, DELAY, 5, DELAY));
+		assertEquals(0, hysteresis.nodesToRetire(5, 2, DELAY, 5, DELAY + 1));
+		assertEquals(3, hysteresis.nodesToRetire(5, 2, DELAY, 5, 2 * DELAY));
+	}
+
+	@Test
+	public void droppingToTheThresholdRestartsTheDelay() {
+		hysteresis.nodesToRetire(10, 2, DELAY, 5, 0);
+		hysteresis.nodesToRetire(3, 2, DELAY, 5, DELAY / 2);
+
+		assertEquals(0, hysteresis.nodesToRetire(10, 2, DELAY, 5, DELAY));
+		assertEquals(0, hysteresis.nodesToRetire(10, 2, DELAY, 5, DELAY + DELAY / 2));
+	}
+
+	@Test
+	public void idleNodesWithinTheThresholdAreKept() {
+		assertEquals(9, IdleScaleIn.Hysteresis.upperThreshold(8));
+		assertEquals(1, IdleScaleIn.Hysteresis.upperThreshold(0));
+	}
+}
@@ -0,0 +1,55 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class LaunchBatcherTest {
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+		ProvisioningOperation.forgetAll();
+	}
+
+	@Test
+	public void requestsWithinTheWindowAreLaunchedByTheFirstOne() throws Exception {
+		final List<ProvisioningOperation> first = ProvisioningOperation.start("cloud", "template", "label", "build #1", 2);
+		List<ProvisioningOperation> second = ProvisioningOperation.start("cloud", "template", "label", "build #2", 1);
+
+		final WindowClosingAfter window = new WindowClosingAfter(2);
+
+		Future<List<ProvisioningOperation>> opener = executor.submit(new Callable<List<ProvisioningOperation>>() {
+			@Override
+			public List<ProvisioningOperation> call() {
+				return LaunchBatcher.join("batched", first, window);
+			}
+		});
+		assertTrue(window.opened.await(1, TimeUnit.MINUTES));
+
+		assertNull(LaunchBatcher.join("batched", second, window));
+		List<ProvisioningOperation> expected = new ArrayList<ProvisioningOperation>(first);
+		expected.addAll(second);
+		assertEquals(expected, opener.get());
+		assertEquals(2, first.size());
+	}
+
+	@Test
+	public void requestsOfOtherKeysAreNotMerged() {
+		List<ProvisioningOperation> operations = ProvisioningOperation.start("cloud", "template", "label", "build #1", 1);
+
+		assertEquals(operations, LaunchBatcher.join("alone", operations, 1));
+	}
+}
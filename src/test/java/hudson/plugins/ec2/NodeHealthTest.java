@@ -0,0 +1,61 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class NodeHealthTest {
+
+	@Test
+	public void healthyNodeScoresTheMaximum() {
+		assertEquals(NodeHealth.MAX_SCORE, NodeHealth.score(0, 0, 10, 1, 0.8, 0.5));
+	}
+
+	@Test
+	public void failuresOnlyCountAboveTheLabelRate() {
+		assertEquals(NodeHealth.MAX_SCORE, NodeHealth.score(0.5, 0.5, 10, 1, 0.8, 0.5));
+		assertEquals(70, NodeHealth.score(0.6, 0.1, 10, 1, 0.8, 0.5));
+	}
+
+	@Test
+	public void failuresDontCountBeforeAFewCells() {
+		assertEquals(NodeHealth.MAX_SCORE, NodeHealth.score(1, 0, 2, 1, 0.8, 0.5));
+	}
+
+	@Test
+	public void slowCellsLowDiskAndHighLoadArePenalized() {
+		assertEquals(85, NodeHealth.score(0, 0, 10, 1.5, 0.8, 0.5));
+		assertEquals(70, NodeHealth.score(0, 0, 10, 5, 0.8, 0.5));
+		assertEquals(85, NodeHealth.score(0, 0, 10, 1, 0.15, 0.5));
+		assertEquals(60, NodeHealth.score(0, 0, 10, 1, 0.05, 0.5));
+		assertEquals(80, NodeHealth.score(0, 0, 10, 1, 0.8, 2));
+		assertEquals(0, NodeHealth.score(1, 0, 10, 5, 0.05, 2));
+	}
+
+	@Test
+	public void unknownNodeScoresTheMaximum() {
+		assertEquals(NodeHealth.MAX_SCORE, NodeHealth.scoreOf("never-seen"));
+	}
+
+	@Test
+	public void flakyAndSlowNodeScoresBelowItsPeers() {
+		for (int i = 0; i < 5; i++) {
+			NodeHealth.recordCell("healthy-" + i, "flaky-label", "job/cell=" + i, false, 1000);
+			NodeHealth.recordCell("healthy-" + i, "flaky-label", "job/cell=" + i, false, 1000);
+			NodeHealth.recordCell("healthy-" + i, "flaky-label", "job/cell=" + i, false, 1000);
+		}
+		for (int i = 0; i < 5; i++)
+			NodeHealth.recordCell("flaky", "flaky-label", "job/cell=" + i, i % 2 == 0, 3000);
+
+		assertTrue(NodeHealth.scoreOf("flaky") < NodeHealth.scoreOf("healthy-0"));
+		NodeHealth.forget("flaky");
+		assertEquals(NodeHealth.MAX_SCORE, NodeHealth.scoreOf("flaky"));
+	}
+
+	@Test
+	public void vitalsAreScored() {
+		NodeHealth.recordVitals("full-disk", "vitals-label", 0.05, 0.1);
+		assertEquals(60, NodeHealth.scoreOf("full-disk"));
+	}
+}
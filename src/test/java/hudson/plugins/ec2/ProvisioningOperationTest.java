@@ -0,0 +1,106 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import hudson.plugins.ec2.ProvisioningOperation.Stage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ProvisioningOperationTest {
+
+	private final ProvisioningOperation subject = ProvisioningOperation.start("cloud", "template", "label", "build #1", 1).get(0);
+
+	@After
+	public void forgetOperations() {
+		ProvisioningOperation.forgetAll();
+	}
+
+	@Test
+	public void reachingAStageCompletesTheStagesBeforeIt() throws Exception {
+		EC2AbstractSlave slave = mock(EC2AbstractSlave.class);
+		subject.setSlave(slave);
+		subject.reached(Stage.REGISTERED);
+
+		assertTrue(subject.when(Stage.REQUESTED).isDone());
+		assertTrue(subject.when(Stage.TAGGED).isDone());
+		assertEquals(slave, subject.when(Stage.REGISTERED).get());
+		assertFalse(subject.when(Stage.RUNNING).isDone());
+		assertEquals(Stage.REGISTERED, subject.getStage());
+	}
+
+	@Test(expected = ExecutionException.class)
+	public void failureFailsTheStagesNotReached() throws Exception {
+		subject.reached(Stage.REQUESTED);
+		subject.failed(new RuntimeException("boom"));
+
+		subject.when(Stage.ONLINE).get();
+	}
+
+	@Test
+	public void cancelledOperationIsNoLongerInFlight() {
+		assertTrue(ProvisioningOperation.getInFlight().contains(subject));
+
+		assertTrue(subject.cancel());
+
+		assertTrue(subject.isCancelled());
+		assertTrue(subject.when(Stage.REGISTERED).isCancelled());
+		assertFalse(ProvisioningOperation.getInFlight().contains(subject));
+	}
+
+	@Test
+	public void awaitRegisteredReturnsTheSlavesOfAllOperations() {
+		List<ProvisioningOperation> operations = ProvisioningOperation.start("cloud", "template", "label", "build #1", 2);
+		EC2AbstractSlave first = mock(EC2AbstractSlave.class);
+		EC2AbstractSlave second = mock(EC2AbstractSlave.class);
+		operations.get(0).setSlave(first);
+		operations.get(0).reached(Stage.REGISTERED);
+		operations.get(1).setSlave(second);
+		operations.get(1).reached(Stage.REGISTERED);
+
+		assertEquals(Arrays.asList(first, second), ProvisioningOperation.awaitRegistered(operations));
+	}
+
+	@Test
+	public void awaitRegisteredThrowsWhenPartOfTheOperationsFailed() {
+		List<ProvisioningOperation> operations = ProvisioningOperation.start("cloud", "template", "label", "build #1", 2);
+		operations.get(0).setSlave(mock(EC2AbstractSlave.class));
+		operations.get(0).reached(Stage.REGISTERED);
+		RuntimeException failure = new RuntimeException("fewer instances");
+		operations.get(1).failed(failure);
+
+		try {
+			ProvisioningOperation.awaitRegistered(operations);
+			fail("The failure of the second operation should be thrown");
+		} catch (RuntimeException e) {
+			assertEquals(failure, e.getCause());
+		}
+	}
+
+	@Test
+	public void slaveRegisteredAfterTheCancellationIsLeftToRelease() {
+		List<ProvisioningOperation> operations = ProvisioningOperation.start("cloud", "template", "label", "build #1", 2);
+		assertTrue(operations.get(0).cancel());
+		EC2AbstractSlave cancelledSlave = mock(EC2AbstractSlave.class);
+		operations.get(0).setSlave(cancelledSlave);
+		operations.get(0).reached(Stage.REGISTERED);
+		operations.get(1).setSlave(mock(EC2AbstractSlave.class));
+		operations.get(1).reached(Stage.REGISTERED);
+
+		assertTrue(operations.get(0).when(Stage.REGISTERED).isCancelled());
+		assertEquals(Arrays.asList(operations.get(0)), ProvisioningOperation.cancelledWithSlave(operations));
+	}
+
+	@Test
+	public void operationsOfOtherTestsAreNotInFlight() {
+		assertEquals(Arrays.asList(subject), ProvisioningOperation.getInFlight());
+	}
+}
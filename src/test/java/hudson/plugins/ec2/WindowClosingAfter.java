@@ -0,0 +1,26 @@
+package hudson.plugins.ec2;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Keeps the batch open until the expected number of callers joined it
+ */
+class WindowClosingAfter implements BatchWindow {
+	final CountDownLatch opened = new CountDownLatch(1);
+	private final CountDownLatch callers;
+
+	WindowClosingAfter(int callers) {
+		this.callers = new CountDownLatch(callers);
+	}
+
+	@Override
+	public void joined() {
+		opened.countDown();
+		callers.countDown();
+	}
+
+	@Override
+	public void awaitClose() throws InterruptedException {
+		callers.await();
+	}
+}
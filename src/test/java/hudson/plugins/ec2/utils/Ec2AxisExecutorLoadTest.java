@@ -0,0 +1,82 @@
+package hudson.plugins.ec2.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import hudson.plugins.ec2.utils.Ec2AxisExecutor.Mode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Holds 1000 simulated instance connections blocked at once, as ssh connection attempts would be, and
+ * counts the live platform threads each executor mode needs for them.
+ */
+public class Ec2AxisExecutorLoadTest {
+	private static final int SIMULATED_INSTANCES = 1000;
+	private static final int POOL_SIZE = 50;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final CountDownLatch release = new CountDownLatch(1);
+	private Ec2AxisExecutor subject;
+
+	@After
+	public void shutdown() throws InterruptedException {
+		release.countDown();
+		if (subject != null) {
+			subject.shutdown();
+			subject.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	@Test
+	public void platformModeKeepsThreadsWithinThePool() throws Exception {
+		subject = new Ec2AxisExecutor(Mode.PLATFORM, POOL_SIZE);
+		int threadsBefore = threads.getThreadCount();
+
+		assertTrue(connectSimulatedInstances(POOL_SIZE).await(1, TimeUnit.MINUTES));
+
+		int extraThreads = threads.getThreadCount() - threadsBefore;
+		assertTrue("Extra platform threads: " + extraThreads, extraThreads <= POOL_SIZE);
+		assertEquals(POOL_SIZE, subject.getRunningTasks());
+		assertEquals(SIMULATED_INSTANCES - POOL_SIZE, subject.getQueuedTasks());
+	}
+
+	@Test
+	public void virtualModeConnectsEveryInstanceAtOnceOnFewPlatformThreads() throws Exception {
+		subject = new Ec2AxisExecutor(Mode.VIRTUAL, POOL_SIZE);
+		assumeTrue(subject.getMode() == Mode.VIRTUAL);
+		int threadsBefore = threads.getThreadCount();
+
+		assertTrue(connectSimulatedInstances(SIMULATED_INSTANCES).await(1, TimeUnit.MINUTES));
+
+		int extraThreads = threads.getThreadCount() - threadsBefore;
+		assertEquals(SIMULATED_INSTANCES, subject.getRunningTasks());
+		assertTrue("Extra platform threads: " + extraThreads,
+				extraThreads <= Runtime.getRuntime().availableProcessors() * 2 + 2);
+	}
+
+	/**
+	 * Submits the connections, which block until the test ends. The returned latch counts down as they start.
+	 */
+	private CountDownLatch connectSimulatedInstances(int startsToAwait) {
+		final CountDownLatch started = new CountDownLatch(startsToAwait);
+		for (int i = 0; i < SIMULATED_INSTANCES; i++) {
+			subject.submit("Connecting i-" + i, new Runnable() {  @Override public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}});
+		}
+		return started;
+	}
+}
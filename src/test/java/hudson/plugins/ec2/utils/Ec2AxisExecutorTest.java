@@ -0,0 +1,97 @@
+package hudson.plugins.ec2.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import hudson.plugins.ec2.utils.Ec2AxisExecutor.Mode;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class Ec2AxisExecutorTest {
+	private static final int POOL_SIZE = 5;
+
+	private final CountDownLatch release = new CountDownLatch(1);
+	private Ec2AxisExecutor subject;
+
+	@After
+	public void shutdown() throws InterruptedException {
+		release.countDown();
+		if (subject != null) {
+			subject.shutdown();
+			subject.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	@Test
+	public void platformModeQueuesTasksBeyondThePoolSize() throws Exception {
+		subject = new Ec2AxisExecutor(Mode.PLATFORM, POOL_SIZE);
+
+		CountDownLatch started = submitBlockingTasks(POOL_SIZE * 2, POOL_SIZE);
+		assertTrue(started.await(1, TimeUnit.MINUTES));
+
+		assertEquals(POOL_SIZE, subject.getRunningTasks());
+		assertEquals(POOL_SIZE, subject.getQueuedTasks());
+	}
+
+	@Test
+	public void virtualModeRunsEveryBlockingTaskAtOnce() throws Exception {
+		subject = new Ec2AxisExecutor(Mode.VIRTUAL, POOL_SIZE);
+		assumeTrue(subject.getMode() == Mode.VIRTUAL);
+
+		CountDownLatch started = submitBlockingTasks(1000, 1000);
+
+		assertTrue(started.await(1, TimeUnit.MINUTES));
+		assertEquals(0, subject.getQueuedTasks());
+	}
+
+	@Test
+	public void modeFallsBackToPlatformThreadsWhenVirtualThreadsAreMissing() {
+		boolean hasVirtualThreads;
+		try {
+			java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			hasVirtualThreads = true;
+		} catch (NoSuchMethodException e) {
+			hasVirtualThreads = false;
+		}
+		subject = new Ec2AxisExecutor(Mode.VIRTUAL, POOL_SIZE);
+
+		assertEquals(hasVirtualThreads ? Mode.VIRTUAL : Mode.PLATFORM, subject.getMode());
+	}
+
+	@Test
+	public void daemonTaskRunsOnItsOwnThread() throws Exception {
+		final CountDownLatch ran = new CountDownLatch(1);
+		final Thread[] runner = new Thread[1];
+		Ec2AxisExecutor.startDaemon("supervisor", new Runnable() {  @Override public void run() {
+			runner[0] = Thread.currentThread();
+			ran.countDown();
+		}});
+
+		assertTrue(ran.await(1, TimeUnit.MINUTES));
+		assertEquals("supervisor", runner[0].getName());
+		assertTrue(runner[0].isDaemon());
+	}
+
+	/**
+	 * Tasks that block until the test ends. The returned latch counts down as they start.
+	 */
+	private CountDownLatch submitBlockingTasks(int count, int startsToAwait) {
+		final CountDownLatch started = new CountDownLatch(startsToAwait);
+		for (int i = 0; i < count; i++) {
+			subject.submit("Connecting i-" + i, new Runnable() {  @Override public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}});
+		}
+		return started;
+	}
+}